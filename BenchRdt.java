@@ -0,0 +1,375 @@
+/** Benchmarks for the reliable data transport protocol.
+ *  usage: BenchRdt packet | seq | handoff
+ *  	   BenchRdt pool [ wSize [ count size ] ]
+ *  	   BenchRdt loop [ wSizes timeouts losses [ count size ] ]
+ *  	   BenchRdt emu [ wSizes timeouts losses [ count size
+ *  	   		[ bandwidth delay ] ] ]
+ *
+ *  packet	times Packet.pack() and Packet.decode() of a full packet
+ *  seq		times Rdt's sequence number arithmetic, incr() and diff()
+ *  handoff	times passing pool packets from one thread to another
+ *  		through a queue, as between Rdt and Sender or Receiver,
+ *  		and through an ArrayBlockingQueue for comparison
+ *  pool	checks that the packet pools stop creating packets once
+ *  		a transfer reaches steady state: runs a loop transfer with
+ *  		no loss, records the number of packets created by the pools
+ *  		of both ends once a quarter of the messages have arrived,
+ *  		and exits with status 1 if either pool creates more than
+ *  		a window of packets before the transfer ends; wSize
+ *  		defaults to 100
+ *  loop	runs two Rdts against each other over UDP on localhost
+ *  		and reports throughput and one-way message latency, for
+ *  		every combination of the given window sizes, timeouts
+ *  		(in seconds) and discard probabilities; each is a comma
+ *  		separated list; defaults are 100, .05 and 0; the sender
+ *  		runs flat out, so latency includes queueing; statistics
+ *  		from the substrates of earlier runs appear as they stop
+ *  count	is the number of messages sent in each loop run;
+ *  		default is 20000
+ *  size	is the message length in bytes; default is 1000
+ *  emu		is like loop, but runs the Rdts over an in-memory emulated
+ *  		path (NetEmu), where the losses are those of the path
+ *  bandwidth	is the emulated path's bandwidth in Mb/s; default is 100
+ *  delay	is its one-way delay in seconds; default is .02
+ *
+ *  The micro-benchmarks run a few warm-up rounds before the measured
+ *  ones and report the best and average time per operation; results
+ *  are consumed so that the JIT cannot discard the work measured.
+ */
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BenchRdt {
+	private static final int WARMUP = 3;	// rounds before measuring
+	private static final int ROUNDS = 5;	// measured rounds
+	private static volatile long sink;	// consumes results
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: BenchRdt packet | seq | "
+				+ "handoff | pool [ wSize [ count size ] ] | "
+				+ "loop | emu [ wSizes timeouts losses [ count "
+				+ "size [ bandwidth delay ] ] ]");
+			System.exit(1);
+		}
+		if (args[0].equals("packet")) benchPacket();
+		else if (args[0].equals("seq")) benchSeq();
+		else if (args[0].equals("handoff")) benchHandoff();
+		else if (args[0].equals("pool")) {
+			int wSize = (args.length > 1 ?
+				     Integer.parseInt(args[1]) : 100);
+			int count = (args.length > 2 ?
+				     Integer.parseInt(args[2]) : 20000);
+			int size = (args.length > 3 ?
+				    Integer.parseInt(args[3]) : 1000);
+			benchPool(wSize, count, size);
+		}
+		else if (args[0].equals("loop") || args[0].equals("emu")) {
+			String w = (args.length > 1 ? args[1] : "100");
+			String t = (args.length > 2 ? args[2] : ".05");
+			String l = (args.length > 3 ? args[3] : "0");
+			int count = (args.length > 4 ?
+				     Integer.parseInt(args[4]) : 20000);
+			int size = (args.length > 5 ?
+				    Integer.parseInt(args[5]) : 1000);
+			double bw = (args.length > 6 ?
+				     Double.parseDouble(args[6]) : 100);
+			double delay = (args.length > 7 ?
+					Double.parseDouble(args[7]) : .02);
+			int port = 11500;
+			for (String ws : w.split(","))
+			for (String ts : t.split(","))
+			for (String ls : l.split(",")) {
+				int wSize = Integer.parseInt(ws);
+				double timeout = Double.parseDouble(ts);
+				double loss = Double.parseDouble(ls);
+				if (args[0].equals("emu"))
+					benchEmu(wSize, timeout, loss, count,
+						 size, bw, delay);
+				else benchLoop(wSize, timeout, loss, count,
+					       size, port);
+				port += 2;
+			}
+		} else {
+			System.out.println("BenchRdt: unknown benchmark "
+					   + args[0]);
+			System.exit(1);
+		}
+		System.exit(0); // don't wait for idle substrates
+	}
+
+	/** Time an operation.
+	 *  @param name is the name reported for the operation
+	 *  @param ops is the number of operations done by one call to r
+	 *  @param r runs ops operations
+	 */
+	private static void time(String name, long ops, Runnable r) {
+		for (int i = 0; i < WARMUP; i++) r.run();
+		double best = Double.MAX_VALUE, sum = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			long t0 = System.nanoTime();
+			r.run();
+			double ns = ((double) (System.nanoTime() - t0)) / ops;
+			best = Math.min(best, ns); sum += ns;
+		}
+		System.out.printf("%-12s %10.1f ns/op best, %10.1f ns/op "
+				  + "average%n", name, best, sum / ROUNDS);
+	}
+
+	/** Time packing and decoding of a full data packet. */
+	private static void benchPacket() {
+		final int N = 1000000;
+		final Packet p = new Packet();
+		p.type = Packet.DATA_ACK; p.seqNum = 1234; p.ackNum = 17;
+		p.rwnd = 100;
+		p.setPayload(ByteBuffer.allocate(Packet.MAXLEN - p.hdrLen()));
+		final byte[] buf = new byte[Packet.BUFLEN];
+		final ByteBuffer bb = ByteBuffer.wrap(buf);
+		final Packet q = new Packet();
+
+		time("pack", N, () -> {
+			long s = 0;
+			for (int i = 0; i < N; i++) {
+				p.seqNum = (short) (i & 0x3fff);
+				s += p.pack(buf, 0);
+			}
+			sink = s;
+		});
+		final int len = p.pack(buf, 0);
+		time("decode", N, () -> {
+			long s = 0;
+			for (int i = 0; i < N; i++) {
+				bb.limit(len).position(0);
+				q.decode(bb);
+				s += q.seqNum + q.length();
+			}
+			sink = s;
+		});
+	}
+
+	/** Time Rdt's sequence number arithmetic. */
+	private static void benchSeq() {
+		final int N = 10000000;
+		final Rdt rdt = new Rdt(1000, .1, new UdpSubstrate(
+			InetAddress.getLoopbackAddress(), 0, null, 0, false));
+		time("incr", N, () -> {
+			int x = 0; long s = 0;
+			for (int i = 0; i < N; i++) {
+				x = rdt.incr(x); s += x;
+			}
+			sink = s;
+		});
+		time("diff", N, () -> {
+			int x = 0, y = 0; long s = 0;
+			for (int i = 0; i < N; i++) {
+				x = rdt.incr(x);
+				if ((i & 7) == 0) y = rdt.incr(y);
+				s += rdt.diff(x, y);
+			}
+			sink = s;
+		});
+	}
+
+	/** Time the handoff of packets between two threads through a
+	 *  queue, including their allocation from and return to a packet
+	 *  pool; once through a PacketQueue, as used between Rdt and
+	 *  Sender or Receiver, and once through a fair ArrayBlockingQueue
+	 *  for comparison.
+	 */
+	private static void benchHandoff() {
+		final int N = 1000000;
+		final PacketPool pool = new PacketPool(4096);
+		final PacketQueue pq = new PacketQueue(1000);
+		handoff("handoff", N, pool, p -> pq.put(p), () -> pq.take());
+		final ArrayBlockingQueue<Packet> q =
+			new ArrayBlockingQueue<Packet>(1000,true);
+		handoff("handoff abq", N, pool, p -> q.put(p), () -> q.take());
+	}
+
+	/** Put operation of a queue under test. */
+	private interface Put { void put(Packet p) throws Exception; }
+
+	/** Take operation of a queue under test. */
+	private interface Take { Packet take() throws Exception; }
+
+	/** Time the handoff of packets through one queue.
+	 *  @param name is the name reported
+	 *  @param n is the number of packets passed in each round
+	 *  @param pool is the pool the packets come from
+	 *  @param put adds a packet to the queue
+	 *  @param take removes a packet from the queue
+	 */
+	private static void handoff(String name, int n, PacketPool pool,
+				    Put put, Take take) {
+		time(name, n, () -> {
+			Thread t = new Thread(() -> {
+				try {
+					for (int i = 0; i < n; i++) {
+						Packet p = pool.alloc();
+						p.seqNum = i;
+						put.put(p);
+					}
+				} catch(Exception e) {
+					System.err.println("BenchRdt:handoff: "
+						+ "put exception " + e);
+					System.exit(1);
+				}
+			});
+			t.start();
+			long s = 0;
+			try {
+				for (int i = 0; i < n; i++) {
+					Packet p = take.take();
+					s += p.seqNum; p.release();
+				}
+				t.join();
+			} catch(Exception e) {
+				System.err.println("BenchRdt:handoff: "
+						   + "take exception " + e);
+				System.exit(1);
+			}
+			sink = s;
+		});
+	}
+
+	/** Run two Rdts against each other over UDP on localhost.
+	 *  @param wSize is the window size
+	 *  @param timeout is the initial retransmission timeout in seconds
+	 *  @param loss is the probability that a packet is discarded
+	 *  @param count is the number of messages sent
+	 *  @param size is the message length in bytes (at least 8)
+	 *  @param port is the port of the receiving end; the sending
+	 *  end uses the next one
+	 */
+	private static void benchLoop(int wSize, double timeout, double loss,
+				      int count, int size, int port)
+				      throws Exception {
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		UdpSubstrate s1 = new UdpSubstrate(lo,port,null,loss,false);
+		UdpSubstrate s2 = new UdpSubstrate(lo,port+1,
+				new InetSocketAddress(lo,port),loss,false);
+		s1.start(); s2.start();
+		transfer(String.format("loop wSize %d timeout %.3f loss %.3f",
+				       wSize, timeout, loss),
+			 s1, s2, wSize, timeout, count, size, 0);
+	}
+
+	/** Check that the packet pools stop creating packets.
+	 *  Runs a loop transfer without loss, and exits with status 1 if
+	 *  the pool of either end creates more than wSize packets after
+	 *  the first quarter of the messages has arrived.
+	 *  @param wSize is the window size
+	 *  @param count is the number of messages sent
+	 *  @param size is the message length in bytes (at least 8)
+	 */
+	private static void benchPool(int wSize, int count, int size)
+				      throws Exception {
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		UdpSubstrate s1 = new UdpSubstrate(lo,11498,null,0,false);
+		UdpSubstrate s2 = new UdpSubstrate(lo,11499,
+				new InetSocketAddress(lo,11498),0,false);
+		s1.start(); s2.start();
+		transfer(String.format("pool wSize %d", wSize),
+			 s1, s2, wSize, .05, count, size, count/4);
+	}
+
+	/** Run two Rdts against each other over an emulated path.
+	 *  @param wSize is the window size
+	 *  @param timeout is the initial retransmission timeout in seconds
+	 *  @param loss is the probability that a packet is lost
+	 *  @param count is the number of messages sent
+	 *  @param size is the message length in bytes (at least 8)
+	 *  @param bandwidth is the path's bandwidth in Mb/s
+	 *  @param delay is the path's one-way delay in seconds
+	 */
+	private static void benchEmu(int wSize, double timeout, double loss,
+				     int count, int size, double bandwidth,
+				     double delay) throws Exception {
+		NetEmu emu = new NetEmu(bandwidth * 125000, delay, 1);
+		emu.setLoss(loss);
+		emu.start();
+		transfer(String.format("emu %.0f Mb/s delay %.3f wSize %d "
+				       + "timeout %.3f loss %.3f", bandwidth,
+				       delay, wSize, timeout, loss),
+			 emu.end(0), emu.end(1), wSize, timeout, count, size, 0);
+	}
+
+	/** Transfer messages between two Rdts and report on it.
+	 *  The Rdt over s2 sends count messages to the one over s1, as
+	 *  fast as it will take them, each stamped with its send time.
+	 *  Reports throughput and the average, median and 99th percentile
+	 *  one-way latency.
+	 *  @param label describes the run
+	 *  @param s1 is the started substrate of the receiving end
+	 *  @param s2 is the started substrate of the sending end
+	 *  @param wSize is the window size
+	 *  @param timeout is the initial retransmission timeout in seconds
+	 *  @param count is the number of messages sent
+	 *  @param size is the message length in bytes (at least 8)
+	 *  @param warmup is the number of messages after which the pools
+	 *  of s1 and s2 must stop creating packets, or 0 for no check;
+	 *  if either creates more than wSize later, the program exits
+	 *  with status 1
+	 */
+	private static void transfer(String label, Substrate s1, Substrate s2,
+				     int wSize, double timeout, int count,
+				     int size, int warmup) throws Exception {
+		Rdt r1 = new Rdt(wSize,timeout,s1,Rdt.SEL_REPEAT);
+		Rdt r2 = new Rdt(wSize,timeout,s2,Rdt.SEL_REPEAT);
+		for (Rdt r : new Rdt[] { r1, r2 }) {
+			r.setSack(true); r.setCongestionControl(true);
+			r.setEventDriven(true); r.start();
+		}
+		final int n = Math.max(8, size);
+		Thread src = new Thread(() -> {
+			ByteBuffer b = ByteBuffer.allocate(n);
+			for (int i = 0; i < count; i++) {
+				b.clear(); b.putLong(0, System.nanoTime());
+				r2.send(b);
+			}
+		});
+		long[] lat = new long[count];
+		ByteBuffer b = ByteBuffer.allocate(n);
+		long created1 = 0, created2 = 0;
+		long t0 = System.nanoTime();
+		src.start();
+		for (int i = 0; i < count; i++) {
+			if (warmup > 0 && i == warmup) {
+				created1 = s1.pool().created();
+				created2 = s2.pool().created();
+			}
+			b.clear(); r1.receive(b);
+			lat[i] = System.nanoTime() - b.getLong(0);
+		}
+		double secs = (System.nanoTime() - t0) / 1e9;
+		src.join();
+		r1.abort(); r2.abort();
+		if (warmup > 0) {
+			// a burst that catches the receiving thread descheduled
+			// can briefly hold up to a window more than warm-up did,
+			// while a leak grows with the number of messages
+			long grew1 = s1.pool().created() - created1;
+			long grew2 = s2.pool().created() - created2;
+			System.out.println(label + ": pools created " + created1
+				+ " and " + created2 + " packets during warm-up, "
+				+ grew1 + " and " + grew2 + " after");
+			if (grew1 > wSize || grew2 > wSize) {
+				System.err.println("BenchRdt:pool: packets "
+					+ "created after warm-up");
+				System.exit(1);
+			}
+		}
+
+		Arrays.sort(lat);
+		long sum = 0;
+		for (long x : lat) sum += x;
+		System.out.printf("%s: %.1f msg/s %.2f MB/s, latency avg %.3f ms "
+			+ "median %.3f ms p99 %.3f ms%n",
+			label, count / secs, count * (double) n / secs / 1e6,
+			sum / (count * 1e6), lat[count/2] / 1e6,
+			lat[Math.min(count-1, (int) (count * .99))] / 1e6);
+	}
+}
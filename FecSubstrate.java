@@ -0,0 +1,377 @@
+/** Forward error correction between an Rdt and its substrate.
+ *
+ *  A FecSubstrate wraps another substrate, and after every k data
+ *  packets it sends, it sends a parity packet whose payload is the
+ *  exclusive-or of theirs. The receiving FecSubstrate keeps the data
+ *  packets it has received most recently, and when a parity packet
+ *  arrives with one of its group missing, it rebuilds that packet and
+ *  passes it up as if it had arrived, so that the loss costs no
+ *  timeout or retransmission. Parity packets are consumed here, and
+ *  acks pass through unprotected. Both ends must use a FecSubstrate.
+ *
+ *  A parity packet has type Packet.FEC and a narrow sequence number
+ *  that counts groups; its payload is
+ *	0   byte  number of data packets n in the group, at most 16
+ *	1   byte  exclusive-or of their MORE, BUNDLE and LONG flags
+ *	2   short exclusive-or of their payload lengths
+ *	4   int   sum of the CRC-32s of their payloads
+ *	8   int   sequence number of each of the n packets
+ *	8+4n      exclusive-or of their payloads, each padded with zeros
+ *		  to the length of the longest
+ *  A parity packet for a group of full packets is longer than a data
+ *  packet, but still fits in the largest datagram that substrates
+ *  accept. Any packet may reach the receiver more than once, as a
+ *  retransmission, and sequence numbers are reused once they wrap
+ *  around, so a rebuilt packet is passed up only if its CRC-32 is the
+ *  one the parity packet implies; otherwise the group is given up.
+ *  The CRC-32s are added rather than combined by exclusive-or: a CRC
+ *  is linear under exclusive-or, so if an older packet of the same
+ *  length stood in for one of the group, the exclusive-or of the CRCs
+ *  would still match the wrong rebuild.
+ *
+ *  Since a group may be cut short when the sender falls idle, one
+ *  whose last data packet went out more than the flush delay ago gets
+ *  its parity packet early, the next time the Rdt checks for incoming
+ *  packets. An event-driven Rdt may park for much longer than that,
+ *  so a timer thread runs the Rdt's listener when a flush falls due;
+ *  the flush itself is left to the Rdt's thread, which owns the group.
+ *  The counters fecParitySent, fecParityBytes, fecDataBytes,
+ *  fecRecovered, fecUnrecoverable and fecBadRebuilds are added to the
+ *  wrapped substrate's statistics.
+ */
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+public class FecSubstrate implements Substrate {
+	public static final int MAXGROUP = 16;	// most packets in a group
+	private static final int FLAGS = Packet.MORE | Packet.BUNDLE
+					 | Packet.LONG;
+
+	private Substrate sub;		// substrate that carries the packets
+	private int k;			// data packets per parity packet
+	private long flushDelay;	// ns before a short group is closed
+
+	// the group being sent
+	private int groupNum = 0;	// number of the group
+	private int n = 0;		// data packets in it so far
+	private int[] seqs;		// their sequence numbers
+	private byte[] xor;		// exclusive-or of their payloads
+	private int maxLen;		// length of the longest payload
+	private int xorLen, xorFlags, sumCrc;
+	private long lastData;		// time the last one was sent
+	private volatile long flushDue = -1; // time its parity is due, or -1
+
+	private volatile Runnable listener; // wakes the Rdt, or null
+	private Thread timer;		// runs listener when a flush is due
+	private volatile boolean timerIdle; // timer waits for a new group
+	private volatile boolean quit;
+
+	// data packets received most recently, oldest first from next
+	private Packet[] held;
+	private ByteBuffer[] heldBuf;	// their payloads, which Rdt may move
+	private int[] heldOff;		// so the position and length are
+	private int[] heldLen;		// kept here
+	private int[] heldSeq;
+	private int[] heldFlags;
+	private int next = 0;		// slot to fill next
+	private ArrayDeque<Packet> ready; // packets to pass up to the Rdt
+
+	private byte[] scratch;		// payload being folded in
+	private byte[] xorIn;		// parity block being unfolded
+	private CRC32 crc;
+
+	private LongAdder paritySent, parityBytes, dataBytes;
+	private LongAdder recovered, unrecoverable, badRebuilds;
+
+	/** Initialize a new FecSubstrate object.
+	 *  @param sub is the substrate to send and receive through;
+	 *  this object starts and joins it
+	 *  @param k is the number of data packets protected by each parity
+	 *  packet, from 1 to MAXGROUP
+	 */
+	FecSubstrate(Substrate sub, int k) {
+		this.sub = sub;
+		this.k = Math.max(1, Math.min(MAXGROUP, k));
+		flushDelay = 5000000;
+		seqs = new int[MAXGROUP];
+		xor = new byte[Packet.MAXPAYLOAD];
+		int m = 4 * this.k; // room for reordering and a late parity
+		held = new Packet[m]; heldBuf = new ByteBuffer[m];
+		heldOff = new int[m]; heldLen = new int[m]; heldSeq = new int[m];
+		heldFlags = new int[m];
+		ready = new ArrayDeque<Packet>();
+		scratch = new byte[Packet.MAXPAYLOAD];
+		xorIn = new byte[Packet.MAXPAYLOAD];
+		crc = new CRC32();
+
+		Metrics metrics = sub.metrics();
+		paritySent = metrics.counter("fecParitySent");
+		parityBytes = metrics.counter("fecParityBytes");
+		dataBytes = metrics.counter("fecDataBytes");
+		recovered = metrics.counter("fecRecovered");
+		unrecoverable = metrics.counter("fecUnrecoverable");
+		badRebuilds = metrics.counter("fecBadRebuilds");
+	}
+
+	/** Set how long a short group waits for more data packets.
+	 *  @param delay is the time in seconds after the last data packet
+	 *  of a group is sent, before its parity packet is sent anyway
+	 */
+	public void setFlushDelay(double delay) {
+		flushDelay = (long) (delay * 1000000000);
+	}
+
+	/** Start the wrapped substrate and the flush timer.
+	 *  Does nothing if already started. A MuxSubstrate session runs
+	 *  as soon as it is opened, and starting it does nothing more.
+	 */
+	public synchronized void start() {
+		if (timer != null) return;
+		sub.start();
+		timer = Threads.factory().newThread(this::runTimer);
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	public void stop() { sub.stop(); }
+
+	/** Wait for the wrapped substrate to stop, then report. */
+	public void join() throws Exception {
+		sub.join();
+		quit = true;
+		if (timer != null) {
+			LockSupport.unpark(timer); timer.join();
+		}
+		long data = dataBytes.sum();
+		System.out.println("  FecSubstrate: sent " + paritySent.sum()
+			+ " parity packets, " + parityBytes.sum() + " bytes ("
+			+ (data == 0 ? 0 : 100 * parityBytes.sum() / data)
+			+ "% of data bytes)");
+		System.out.println("          recovered " + recovered.sum()
+			+ " data packets, " + unrecoverable.sum()
+			+ " groups lost more than one, " + badRebuilds.sum()
+			+ " rebuilds rejected");
+	}
+
+	public PacketPool pool() { return sub.pool(); }
+
+	/** Send a packet, adding a data packet to the current group.
+	 *  The group's parity packet follows its last data packet.
+	 */
+	public void send(Packet p) {
+		if (p.isData()) {
+			add(p);
+			sub.send(p);
+			if (n == k) flush();
+		} else sub.send(p);
+	}
+
+	/** Fold a data packet into the current group.
+	 *  A retransmission of a packet already in the group is left out,
+	 *  since it would cancel itself.
+	 *  @param p is a data packet about to be sent
+	 */
+	private void add(Packet p) {
+		for (int i = 0; i < n; i++) if (seqs[i] == p.seqNum) return;
+		int len = p.length();
+		p.payload.get(p.payload.position(), scratch, 0, len);
+		for (int i = 0; i < len; i++) xor[i] ^= scratch[i];
+		crc.reset(); crc.update(scratch, 0, len);
+		sumCrc += (int) crc.getValue();
+		xorLen ^= len; xorFlags ^= p.wireType() & FLAGS;
+		maxLen = Math.max(maxLen, len);
+		seqs[n++] = p.seqNum;
+		dataBytes.add(len);
+		lastData = System.nanoTime();
+		flushDue = lastData + flushDelay;
+		if (n == 1 && timerIdle) LockSupport.unpark(timer);
+	}
+
+	/** Send the parity packet for the current group and start the next.
+	 *  Does nothing if the group is empty.
+	 */
+	private void flush() {
+		if (n == 0) return;
+		Packet q = sub.pool().alloc();
+		q.type = Packet.FEC; q.seqNum = groupNum;
+		ByteBuffer b = q.buffer();
+		b.put((byte) n).put((byte) xorFlags).putShort((short) xorLen)
+		 .putInt(sumCrc);
+		for (int i = 0; i < n; i++) b.putInt(seqs[i]);
+		b.put(xor, 0, maxLen).flip();
+		q.payload = b;
+		paritySent.increment(); parityBytes.add(b.remaining());
+		sub.send(q);
+
+		groupNum = (groupNum + 1) & 0x7fff;
+		Arrays.fill(xor, 0, maxLen, (byte) 0);
+		n = maxLen = xorLen = xorFlags = sumCrc = 0;
+		flushDue = -1;
+	}
+
+	/** Timer thread wakes the Rdt when a short group's parity packet
+	 *  falls due, since the Rdt may be parked and not checking for
+	 *  incoming packets. While no group is open, it waits for add()
+	 *  to start one; after waking the Rdt, it checks back after the
+	 *  flush delay, in case the Rdt sent more data before flushing.
+	 */
+	private void runTimer() {
+		while (!quit) {
+			long due = flushDue;
+			if (due < 0) {
+				timerIdle = true;
+				if (flushDue < 0 && !quit) LockSupport.park(this);
+				timerIdle = false;
+				continue;
+			}
+			long wait = due - System.nanoTime();
+			if (wait >= 0) {
+				LockSupport.parkNanos(this, wait + 1);
+				continue;
+			}
+			Runnable l = listener;
+			if (l != null) l.run();
+			LockSupport.parkNanos(this, flushDelay);
+		}
+	}
+
+	public boolean ready() { return sub.ready(); }
+
+	/** Test if the substrate can take x more packets, leaving room for
+	 *  the parity packet that the next data packet may bring with it.
+	 */
+	public boolean readyX(int x) { return sub.readyX(x+1); }
+
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+		sub.setListener(listener);
+	}
+
+	/** Retrieve the next data packet or ack.
+	 *  Parity packets are consumed, rebuilding a lost data packet
+	 *  when they can.
+	 */
+	public Packet receive() {
+		while (ready.isEmpty()) accept(sub.receive());
+		return ready.poll();
+	}
+
+	/** Test for incoming packets, after sending the parity packet of
+	 *  a group that has waited too long for more data packets.
+	 *  The timer thread wakes an event-driven Rdt to call this
+	 *  when one is due.
+	 */
+	public boolean incoming() {
+		if (n > 0 && System.nanoTime() - lastData > flushDelay) flush();
+		while (ready.isEmpty() && sub.incoming()) accept(sub.receive());
+		return !ready.isEmpty();
+	}
+
+	public void setPacingRate(double rate) { sub.setPacingRate(rate); }
+
+	/** Get the statistics of the wrapped substrate, which include the
+	 *  counters of this one.
+	 */
+	public Metrics metrics() { return sub.metrics(); }
+
+	/** Handle a packet from the wrapped substrate.
+	 *  @param p is the packet
+	 */
+	private void accept(Packet p) {
+		if (p.type == Packet.FEC) {
+			rebuild(p); p.release();
+			return;
+		}
+		if (p.isData()) hold(p);
+		ready.add(p);
+	}
+
+	/** Keep a received data packet, in place of the oldest one kept.
+	 *  @param p is the packet; a reference is added for the time
+	 *  it is kept
+	 */
+	private void hold(Packet p) {
+		if (held[next] != null) held[next].release();
+		held[next] = p.retain(); heldBuf[next] = p.payload;
+		heldOff[next] = p.payload.position();
+		heldLen[next] = p.length(); heldSeq[next] = p.seqNum;
+		heldFlags[next] = p.wireType() & FLAGS;
+		next = (next + 1) % held.length;
+	}
+
+	/** Find the most recently received data packet with a given
+	 *  sequence number.
+	 *  @param seq is the sequence number
+	 *  @return its index in held, or -1 if none is kept
+	 */
+	private int find(int seq) {
+		for (int i = 1; i <= held.length; i++) {
+			int j = (next - i + held.length) % held.length;
+			if (held[j] != null && heldSeq[j] == seq) return j;
+		}
+		return -1;
+	}
+
+	/** Rebuild the data packet missing from a parity packet's group.
+	 *  Nothing is done if none of the group is missing; if more than
+	 *  one is, the group cannot be repaired.
+	 *  @param q is the parity packet
+	 */
+	private void rebuild(Packet q) {
+		ByteBuffer b = q.payload;
+		int pos = b.position();
+		int cnt = b.get(pos) & 0xff;
+		int blockLen = b.remaining() - 8 - 4*cnt;
+		if (cnt > MAXGROUP || blockLen < 0 ||
+		    blockLen > Packet.MAXPAYLOAD) return; // malformed
+		int missing = -1;
+		for (int i = 0; i < cnt; i++) {
+			if (find(b.getInt(pos + 8 + 4*i)) >= 0) continue;
+			if (missing >= 0) {
+				unrecoverable.increment(); return;
+			}
+			missing = b.getInt(pos + 8 + 4*i);
+		}
+		if (missing < 0) return;
+
+		int flags = b.get(pos+1) & 0xff, len = b.getShort(pos+2) & 0xffff;
+		int sum = b.getInt(pos+4);
+		b.get(pos + 8 + 4*cnt, xorIn, 0, blockLen);
+		Arrays.fill(xorIn, blockLen, xorIn.length, (byte) 0);
+		for (int i = 0; i < cnt; i++) {
+			int seq = b.getInt(pos + 8 + 4*i);
+			if (seq == missing) continue;
+			int j = find(seq);
+			int m = heldLen[j];
+			if (m > blockLen || heldOff[j] + m > heldBuf[j].limit()) {
+				badRebuilds.increment(); return;
+			}
+			heldBuf[j].get(heldOff[j], scratch, 0, m);
+			for (int x = 0; x < m; x++) xorIn[x] ^= scratch[x];
+			crc.reset(); crc.update(scratch, 0, m);
+			sum -= (int) crc.getValue();
+			len ^= m; flags ^= heldFlags[j];
+		}
+		crc.reset();
+		if (len <= blockLen) crc.update(xorIn, 0, len);
+		if (len > blockLen || (int) crc.getValue() != sum) {
+			badRebuilds.increment(); return;
+		}
+
+		Packet p = sub.pool().alloc();
+		p.type = Packet.DATA; p.seqNum = missing;
+		p.wide = (flags & Packet.LONG) != 0;
+		p.more = (flags & Packet.MORE) != 0;
+		p.bundle = (flags & Packet.BUNDLE) != 0;
+		p.peer = q.peer;
+		ByteBuffer pb = p.buffer();
+		pb.put(xorIn, 0, len).flip();
+		p.payload = pb;
+		recovered.increment();
+		hold(p); ready.add(p);
+	}
+}
@@ -0,0 +1,115 @@
+/** Datagram I/O loop.
+ *
+ *  This class runs a single thread that performs all socket IO for
+ *  any number of NioSubstrate endpoints, using a Selector over their
+ *  non-blocking datagram channels. The thread only wakes up when a
+ *  channel becomes readable, when an endpoint has packets to write,
+ *  when a packet held back by pacing may go, or when an endpoint's
+ *  idle deadline is reached.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class IoLoop implements Runnable {
+	private Selector sel;
+	private ConcurrentLinkedQueue<NioSubstrate> pending; // to register
+	private ArrayList<NioSubstrate> endpoints; // registered endpoints
+	private Thread myThread;	// thread that executes run() method
+	private volatile boolean quit;
+
+	/** Initialize a new IoLoop object. */
+	IoLoop() {
+		try {
+			sel = Selector.open();
+		} catch(Exception e) {
+			System.err.println("IoLoop: unable to open selector " + e);
+			System.exit(1);
+		}
+		pending = new ConcurrentLinkedQueue<NioSubstrate>();
+		endpoints = new ArrayList<NioSubstrate>();
+		quit = false;
+	}
+
+	/** Instantiate run() thread and start it running, if not yet done.
+	 *  The thread is a daemon thread, so it does not keep the program
+	 *  alive once its endpoints have stopped.
+	 */
+	public synchronized void start() {
+		if (myThread != null) return;
+		myThread = Threads.factory().newThread(this); myThread.setDaemon(true);
+		myThread.start();
+	}
+
+	/** Stop the loop thread and wait for it to quit. */
+	public void stop() throws Exception {
+		quit = true; sel.wakeup();
+		if (myThread != null) myThread.join();
+	}
+
+	/** Add an endpoint to the loop.
+	 *  @param s is an endpoint whose channel is to be registered
+	 *  by the loop thread
+	 */
+	public void register(NioSubstrate s) {
+		pending.add(s); sel.wakeup();
+	}
+
+	/** Wake up the loop thread, so that it notices new interest ops. */
+	public void wakeup() { sel.wakeup(); }
+
+	/** Loop thread waits for channel events and hands them to the
+	 *  endpoints. Endpoints that have been idle for too long are
+	 *  closed and dropped from the loop.
+	 */
+	public void run() {
+		while (!quit) {
+			NioSubstrate s;
+			while ((s = pending.poll()) != null) {
+				if (s.register(sel)) endpoints.add(s);
+			}
+
+			// wait until the earliest idle deadline or paced packet,
+			// or indefinitely if no endpoint has seen any traffic yet
+			long now = System.nanoTime();
+			long deadline = Long.MAX_VALUE;
+			for (NioSubstrate e : endpoints) {
+				deadline = Math.min(deadline, e.deadline());
+				deadline = Math.min(deadline, e.wakeTime());
+			}
+			try {
+				if (deadline == Long.MAX_VALUE) sel.select();
+				else if (deadline > now) 
+					sel.select(Math.max(1,(deadline-now)/1000000));
+				else sel.selectNow();
+			} catch(Exception e) {
+				System.err.println("IoLoop:run: select exception "+e);
+				System.exit(1);
+			}
+
+			Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next(); it.remove();
+				s = (NioSubstrate) key.attachment();
+				if (!key.isValid()) continue;
+				if (key.isReadable()) s.handleRead();
+				if (key.isValid() && key.isWritable()) s.handleWrite();
+			}
+
+			// send packets whose pacing delay is over, then
+			// close endpoints whose idle deadline has passed
+			now = System.nanoTime();
+			for (NioSubstrate e : endpoints)
+				if (e.wakeTime() <= now) e.resume();
+			for (int i = endpoints.size()-1; i >= 0; i--) {
+				if (endpoints.get(i).deadline() <= now) {
+					endpoints.get(i).close();
+					endpoints.remove(i);
+				}
+			}
+		}
+	}
+}
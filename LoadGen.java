@@ -0,0 +1,522 @@
+/** Load generator for the reliable data transport protocol.
+ *  usage: LoadGen loop | emu [ virtual ] streams wSize timeout schedule
+ *  		sizes outstanding runLength [ out [ bandwidth delay loss ] ]
+ *
+ *  A LoadGen takes the place of a SrcSnk on top of an Rdt. It sends
+ *  messages on a schedule and receives those of its peer, checking
+ *  that they arrive in order. Each message starts with a header that
+ *  holds its kind, a sequence number and a send time, and is padded
+ *  out to its size.
+ *
+ *  With an open-loop schedule, messages are sent at the times the
+ *  schedule sets, whether or not earlier ones have been delivered.
+ *  Each one is stamped with the time it was due, not the time it was
+ *  actually sent, so the time it spent waiting for the Rdt to take it
+ *  counts towards its latency. The peer records the one-way latency
+ *  of each message. This needs both ends to read the same clock
+ *  (System.nanoTime()), so it holds only on a single host. In closed
+ *  loop, at most a given number of requests are outstanding. The peer
+ *  replies to each one with its header, and the sender records the
+ *  round-trip time. The schedule still sets the fastest pace.
+ *
+ *  Statistics are kept for each second of the run: messages offered
+ *  by the schedule, sent and received, goodput, and latency
+ *  percentiles. report() writes them as CSV or JSON. When the offered
+ *  load of a ramp passes what the window and timeout allow, goodput
+ *  stops following it and latency climbs. That is the saturation
+ *  point of the configuration.
+ *
+ *  Run with arguments, LoadGen connects several pairs of Rdts in one
+ *  process and drives each pair with one stream. The Rdts use
+ *  selective repeat with sack, congestion control and event-driven
+ *  scheduling, as in BenchRdt.
+ *
+ *  loop	runs each pair over UDP on localhost
+ *  emu		runs each pair over its own emulated path (NetEmu)
+ *  virtual	runs all threads as virtual threads, where supported
+ *  streams	is the number of Rdt pairs
+ *  wSize	is the window size of each Rdt
+ *  timeout	is the initial retransmission timeout in seconds
+ *  schedule	is const:r for r messages per second (0 for no limit),
+ *  		ramp:r1:r2 for a rate rising from r1 to r2 over the run,
+ *  		or burst:n:p for n messages at once every p seconds;
+ *  		the rates are for each stream
+ *  sizes	is a message size in bytes, or min-max for sizes drawn
+ *  		uniformly from that range; at least 17 bytes
+ *  outstanding	is the most requests outstanding in each stream, or 0
+ *  		for open loop
+ *  runLength	is the time messages are sent, in seconds
+ *  out		is the file the results are written to, as JSON if its
+ *  		name ends in .json and otherwise as CSV; - for standard
+ *  		output, which is the default
+ *  bandwidth	is the emulated path's bandwidth in Mb/s; default is 100
+ *  delay	is its one-way delay in seconds; default is .02
+ *  loss	is its loss probability; default is 0
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+public class LoadGen implements Runnable {
+	public static final int HDR = 17;	// header length
+	public static final int MAXSIZE = 65536; // largest message
+
+	// message kinds
+	private static final byte ONEWAY = 0;	// for one-way latency
+	private static final byte REQUEST = 1;	// to be replied to
+	private static final byte REPLY = 2;	// header of a request
+
+	private static final long SEC = 1000000000L; // interval length, ns
+	private static final long IDLE = 100000;  // longest idle park, ns
+
+	private Thread myThread;	// thread that executes run() method
+	private ThreadFactory threads;	// creates it; null for the default
+	private Rdt rdt;
+
+	private Schedule schedule;	// null to only receive and reply
+	private int minSize, maxSize;	// range of message sizes
+	private int outstanding;	// most requests in flight; 0 if open
+	private long runLength;		// time during which to send, in ns
+	private Random random;
+
+	private volatile boolean quit;
+	private volatile long sentCount = 0; // messages sent
+	private volatile long rcvdCount = 0; // messages received
+	private volatile long replyCount = 0; // replies received
+	private ArrayList<Interval> intervals;
+	private ArrayDeque<long[]> owed; // replies not yet sent: seq, stamp
+
+	/** Initialize a new LoadGen object.
+	 *  Until a schedule is set, it only receives, and replies to
+	 *  requests.
+	 *  @param runLength is the time during which to send, in seconds,
+	 *  or 0 to send until stopped
+	 *  @param rdt is the Rdt to send and receive on
+	 */
+	LoadGen(double runLength, Rdt rdt) {
+		this.runLength = (runLength > 0 ? (long) (runLength * SEC)
+					        : Long.MAX_VALUE);
+		this.rdt = rdt;
+		minSize = maxSize = 1000;
+		random = new Random(1);
+		intervals = new ArrayList<Interval>();
+		owed = new ArrayDeque<long[]>();
+	}
+
+	/** Set the send schedule; must be called before start().
+	 *  @param spec is const:r, ramp:r1:r2 or burst:n:p, as described
+	 *  above
+	 */
+	public void setSchedule(String spec) {
+		schedule = new Schedule(spec, runLength);
+	}
+
+	/** Set the message sizes; must be called before start().
+	 *  @param spec is a size, or min-max for sizes drawn uniformly
+	 *  from that range
+	 */
+	public void setSizes(String spec) {
+		String[] s = spec.split("-");
+		minSize = Integer.parseInt(s[0]);
+		maxSize = (s.length > 1 ? Integer.parseInt(s[1]) : minSize);
+		if (minSize < HDR || maxSize < minSize || maxSize > MAXSIZE) {
+			System.err.println("LoadGen:setSizes: sizes must be "
+				+ "between " + HDR + " and " + MAXSIZE);
+			System.exit(1);
+		}
+	}
+
+	/** Select closed loop; must be called before start().
+	 *  @param outstanding is the most requests waiting for replies,
+	 *  or 0 for open loop
+	 */
+	public void setOutstanding(int outstanding) {
+		this.outstanding = outstanding;
+	}
+
+	/** Set the factory for the thread that runs this LoadGen.
+	 *  Must be called before start().
+	 *  @param threads is the factory, or null for Threads.factory()
+	 */
+	public void setThreadFactory(ThreadFactory threads) {
+		this.threads = threads;
+	}
+
+	/** Instantiate and start a thread to execute run(). */
+	public void start() {
+		myThread = Threads.newThread(threads,this); myThread.start();
+	}
+
+	/** Signal run method to halt. */
+	public void stop() { quit = true; }
+
+	/** wait for thread to terminate. */
+	public void join() throws Exception { myThread.join(); }
+
+	/** Get the number of messages sent.
+	 *  @return the number sent so far
+	 */
+	public long sent() { return sentCount; }
+
+	/** Get the number of messages received, not counting replies.
+	 *  @return the number received so far
+	 */
+	public long received() { return rcvdCount; }
+
+	/** Get the number of replies received.
+	 *  @return the number received so far
+	 */
+	public long replies() { return replyCount; }
+
+	/** Run the LoadGen thread.
+	 *  Sends owed replies first, then receives, then sends the next
+	 *  message when the schedule and the closed loop allow it. Replies
+	 *  wait in owed until the Rdt can take them without blocking, so
+	 *  two LoadGens replying to each other cannot deadlock.
+	 */
+	public void run() {
+		long t0 = System.nanoTime();
+		ByteBuffer out = ByteBuffer.allocate(maxSize);
+		ByteBuffer in = ByteBuffer.allocate(MAXSIZE);
+		long nextSend = 0;	// time the next message is due
+		long nextOffer = 0;	// time the next offered message is due
+		long k = 0, kOffer = 0;	// numbers of those messages
+		long inSeq = 0;		// expected sequence number
+		int inFlight = 0;	// requests without replies
+		byte kind = (outstanding > 0 ? REQUEST : ONEWAY);
+
+		while (!quit) {
+			long now = System.nanoTime() - t0;
+			Interval iv = interval(now);
+
+			// count the messages the schedule has offered so far
+			while (schedule != null && !schedule.unlimited() &&
+			       nextOffer <= now && nextOffer < runLength) {
+				interval(nextOffer).offered++;
+				nextOffer = schedule.next(nextOffer, kOffer++);
+			}
+
+			if (!owed.isEmpty() && rdt.ready()) {
+				long[] r = owed.poll();
+				out.clear();
+				out.put(REPLY).putLong(r[0]).putLong(r[1]).flip();
+				rdt.send(out);
+			} else if (rdt.incoming() && owed.size() < 1000) {
+				in.clear();
+				int n = rdt.receive(in);
+				byte t = in.get(0);
+				long seq = in.getLong(1), stamp = in.getLong(9);
+				long lat = (System.nanoTime() - stamp) / 1000;
+				if (t == REPLY) {
+					replyCount++; inFlight--;
+					iv.rtt.add(lat);
+					continue;
+				}
+				if (seq != inSeq) {
+					System.out.println("LoadGen: got message "
+						+ seq + " when expecting " + inSeq);
+					System.exit(1);
+				}
+				inSeq++; rcvdCount++;
+				iv.received++; iv.bytes += n;
+				iv.owd.add(lat);
+				if (t == REQUEST) owed.add(new long[] { seq, stamp });
+			} else if (schedule != null && now < runLength &&
+				   nextSend <= now && rdt.ready() &&
+				   (outstanding == 0 || inFlight < outstanding)) {
+				int n = minSize + random.nextInt(maxSize-minSize+1);
+				// open loop stamps the time the message was due
+				long stamp = t0 + (outstanding > 0 ? now : nextSend);
+				out.clear();
+				out.put(kind).putLong(k).putLong(stamp);
+				out.limit(n).position(0);
+				rdt.send(out);
+				sentCount++; iv.sent++;
+				if (outstanding > 0) inFlight++;
+				nextSend = schedule.next(nextSend, k++);
+			} else {
+				long wait = IDLE;
+				if (schedule != null && nextSend > now)
+					wait = Math.min(wait, nextSend - now);
+				LockSupport.parkNanos(wait);
+			}
+		}
+		System.out.println("  LoadGen: sent " + sentCount
+				+ ", received " + rcvdCount + ", replies "
+				+ replyCount);
+	}
+
+	/** Get the statistics for the interval holding a given time.
+	 *  @param t is a time since the start of the run, in ns
+	 *  @return the interval, added if necessary
+	 */
+	private Interval interval(long t) {
+		int i = (int) (t / SEC);
+		while (intervals.size() <= i) intervals.add(new Interval());
+		return intervals.get(i);
+	}
+
+	/** Write the combined results of several LoadGens.
+	 *  Each line of CSV, or each element of the JSON intervals array,
+	 *  covers one second of the run, up to the last one in which
+	 *  anything happened; a final total covers all of them.
+	 *  Latencies are in ms; the one-way ones are those of messages
+	 *  received, and the round-trip ones those of replies.
+	 *  @param gens are the LoadGens, which must have stopped
+	 *  @param out is where the results are written
+	 *  @param json is true for JSON, false for CSV
+	 */
+	public static void report(List<LoadGen> gens, PrintStream out,
+				  boolean json) {
+		int n = 0;
+		for (LoadGen g : gens) n = Math.max(n, g.intervals.size());
+		ArrayList<Interval> rows = new ArrayList<Interval>();
+		Interval total = new Interval();
+		for (int i = 0; i < n; i++) {
+			Interval iv = new Interval();
+			for (LoadGen g : gens) {
+				if (i < g.intervals.size())
+					iv.merge(g.intervals.get(i));
+			}
+			rows.add(iv); total.merge(iv);
+		}
+		// leave out the idle seconds after the last message
+		while (n > 0 && rows.get(n-1).idle()) rows.remove(--n);
+		if (json) {
+			out.println("{\"intervals\": [");
+			for (int i = 0; i < n; i++) {
+				out.println("  " + rows.get(i).json(i, 1)
+					    + (i < n-1 ? "," : ""));
+			}
+			out.println("], \"total\": " + total.json(0, n) + "}");
+		} else {
+			out.println("time,offered,sent,received,MBps,"
+				+ "owd_p50_ms,owd_p99_ms,owd_max_ms,"
+				+ "rtt_p50_ms,rtt_p99_ms,rtt_max_ms");
+			for (int i = 0; i < n; i++)
+				out.println(rows.get(i).csv(Integer.toString(i), 1));
+			out.println(total.csv("total", n));
+		}
+		out.flush();
+	}
+
+	/** Send schedule. */
+	private static class Schedule {
+		private String shape;	// const, ramp or burst
+		private double r1, r2;	// rates, or burst size and period
+		private long length;	// length of the run in ns
+
+		/** Parse a schedule.
+		 *  @param spec is const:r, ramp:r1:r2 or burst:n:p
+		 *  @param length is the length of the run in ns
+		 */
+		Schedule(String spec, long length) {
+			String[] s = spec.split(":");
+			shape = s[0]; this.length = length;
+			try {
+				r1 = Double.parseDouble(s[1]);
+				if (!shape.equals("const"))
+					r2 = Double.parseDouble(s[2]);
+			} catch(Exception e) {
+				shape = "";
+			}
+			if (!shape.equals("const") && !shape.equals("ramp") &&
+			    !(shape.equals("burst") && r1 >= 1 && r2 > 0)) {
+				System.err.println("LoadGen: bad schedule " + spec);
+				System.exit(1);
+			}
+		}
+
+		/** Test if the schedule sets no limit.
+		 *  @return true if messages may be sent as fast as possible
+		 */
+		boolean unlimited() { return shape.equals("const") && r1 <= 0; }
+
+		/** Get the time the next message is due.
+		 *  @param t is the time message k was due, in ns
+		 *  @param k is the number of that message, from 0
+		 *  @return the time message k+1 is due
+		 */
+		long next(long t, long k) {
+			if (unlimited()) return t;
+			if (shape.equals("burst"))
+				return (long) (((k+1) / (long) r1) * r2 * SEC);
+			double r = r1;
+			if (shape.equals("ramp"))
+				r += (r2 - r1) * Math.min(1, (double) t / length);
+			return t + (long) (SEC / Math.max(1, r));
+		}
+	}
+
+	/** Statistics for one interval of the run. */
+	private static class Interval {
+		long offered, sent, received, bytes;
+		Samples owd = new Samples(), rtt = new Samples();
+
+		/** Add the statistics of another interval to these. */
+		void merge(Interval x) {
+			offered += x.offered; sent += x.sent;
+			received += x.received; bytes += x.bytes;
+			owd.merge(x.owd); rtt.merge(x.rtt);
+		}
+
+		/** Test if nothing happened in the interval. */
+		boolean idle() {
+			return offered + sent + received + rtt.n == 0;
+		}
+
+		/** Format as a line of CSV.
+		 *  @param time is the label of the interval
+		 *  @param secs is its length in seconds
+		 */
+		String csv(String time, int secs) {
+			return String.format("%s,%d,%d,%d,%.3f,%s,%s", time,
+				offered, sent, received, bytes / (1e6 * secs),
+				owd.csv(), rtt.csv());
+		}
+
+		/** Format as a JSON object.
+		 *  @param time is the start of the interval in seconds
+		 *  @param secs is its length in seconds
+		 */
+		String json(int time, int secs) {
+			return String.format("{\"time\": %d, \"offered\": %d, "
+				+ "\"sent\": %d, \"received\": %d, "
+				+ "\"MBps\": %.3f, \"owd\": %s, \"rtt\": %s}",
+				time, offered, sent, received,
+				bytes / (1e6 * secs), owd.json(), rtt.json());
+		}
+	}
+
+	/** Latency samples, in microseconds. */
+	private static class Samples {
+		private long[] v = new long[16];
+		private int n = 0;
+		private boolean sorted = true;
+
+		void add(long x) {
+			if (n == v.length) v = Arrays.copyOf(v, 2*n);
+			v[n++] = x; sorted = false;
+		}
+
+		void merge(Samples s) {
+			for (int i = 0; i < s.n; i++) add(s.v[i]);
+		}
+
+		/** Get a percentile.
+		 *  @param q is the fraction of samples, between 0 and 1
+		 *  @return the sample that a fraction q of them do not
+		 *  exceed, in ms, or -1 if there are none
+		 */
+		double percentile(double q) {
+			if (n == 0) return -1;
+			if (!sorted) { Arrays.sort(v, 0, n); sorted = true; }
+			return v[Math.min(n-1, (int) (q * n))] / 1000.0;
+		}
+
+		String csv() {
+			if (n == 0) return ",,";
+			return String.format("%.3f,%.3f,%.3f", percentile(.5),
+					     percentile(.99), percentile(1));
+		}
+
+		String json() {
+			if (n == 0) return "null";
+			return String.format("{\"p50\": %.3f, \"p99\": %.3f, "
+				+ "\"max\": %.3f}", percentile(.5),
+				percentile(.99), percentile(1));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int a = 1;
+		if (args.length > 1 && args[1].equals("virtual")) {
+			Threads.useVirtual(); a++;
+		}
+		if (args.length < a + 7 || !(args[0].equals("loop") ||
+					     args[0].equals("emu"))) {
+			System.out.println("usage: LoadGen loop | emu [ virtual ] "
+				+ "streams wSize timeout schedule sizes "
+				+ "outstanding runLength [ out [ bandwidth "
+				+ "delay loss ] ]");
+			System.exit(1);
+		}
+		boolean emu = args[0].equals("emu");
+		int streams = Integer.parseInt(args[a]);
+		int wSize = Integer.parseInt(args[a+1]);
+		double timeout = Double.parseDouble(args[a+2]);
+		String sched = args[a+3], sizes = args[a+4];
+		int outstanding = Integer.parseInt(args[a+5]);
+		double runLength = Double.parseDouble(args[a+6]);
+		String file = (args.length > a+7 ? args[a+7] : "-");
+		double bw = (args.length > a+8 ?
+			     Double.parseDouble(args[a+8]) : 100);
+		double delay = (args.length > a+9 ?
+				Double.parseDouble(args[a+9]) : .02);
+		double loss = (args.length > a+10 ?
+			       Double.parseDouble(args[a+10]) : 0);
+
+		// one pair of Rdts per stream; r2 sends to r1
+		ArrayList<LoadGen> gens = new ArrayList<LoadGen>();
+		ArrayList<Rdt> rdts = new ArrayList<Rdt>();
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		for (int i = 0; i < streams; i++) {
+			Substrate s1, s2;
+			if (emu) {
+				NetEmu e = new NetEmu(bw * 125000, delay, i+1);
+				e.setLoss(loss);
+				s1 = e.end(0); s2 = e.end(1);
+			} else {
+				int port = 11600 + 2*i;
+				s1 = new UdpSubstrate(lo,port,null,0,false);
+				s2 = new UdpSubstrate(lo,port+1,
+					new InetSocketAddress(lo,port),0,false);
+			}
+			s1.start(); s2.start();
+			Rdt r1 = new Rdt(wSize,timeout,s1,Rdt.SEL_REPEAT);
+			Rdt r2 = new Rdt(wSize,timeout,s2,Rdt.SEL_REPEAT);
+			for (Rdt r : new Rdt[] { r1, r2 }) {
+				r.setSack(true); r.setCongestionControl(true);
+				r.setEventDriven(true); r.start();
+				rdts.add(r);
+			}
+			LoadGen g1 = new LoadGen(runLength,r1);
+			LoadGen g2 = new LoadGen(runLength,r2);
+			g2.setSchedule(sched); g2.setSizes(sizes);
+			g2.setOutstanding(outstanding);
+			gens.add(g1); gens.add(g2);
+		}
+		for (LoadGen g : gens) g.start();
+
+		// wait out the run, then for the last messages, but no
+		// more than 10 seconds
+		Thread.sleep((long) (runLength * 1000));
+		long deadline = System.nanoTime() + 10 * SEC;
+		while (System.nanoTime() < deadline) {
+			long sent = 0, done = 0;
+			for (int i = 0; i < gens.size(); i += 2) {
+				sent += gens.get(i+1).sent();
+				done += (outstanding > 0 ? gens.get(i+1).replies()
+						       : gens.get(i).received());
+			}
+			if (done >= sent) break;
+			Thread.sleep(10);
+		}
+		for (LoadGen g : gens) g.stop();
+		for (LoadGen g : gens) g.join();
+		for (Rdt r : rdts) r.abort();
+
+		if (file.equals("-")) {
+			report(gens, System.out, false);
+		} else {
+			try (PrintStream ps = new PrintStream(file)) {
+				report(gens, ps, file.endsWith(".json"));
+			}
+		}
+		System.exit(0); // don't wait for idle substrates
+	}
+}
@@ -0,0 +1,235 @@
+/** Live statistics for an Rdt or a substrate.
+ *
+ *  A Metrics object holds named counters, gauges and histograms. The
+ *  object that owns it creates them at startup and keeps references
+ *  to the counters and histograms, so that updating them on the data
+ *  path costs no more than a LongAdder increment. Gauges are read
+ *  only when the statistics are, from the owner's fields or queues;
+ *  since they are read by another thread, a value may be slightly
+ *  out of date.
+ *
+ *  The statistics can be read at any time with snapshot(), and are
+ *  exposed through JMX (for example to jconsole) as read-only
+ *  attributes of an MBean named rdt:type=type,id=n, while the owner
+ *  is running. A histogram named h appears as h.count, h.mean, h.p50,
+ *  h.p99 and h.max.
+ */
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javax.management.*;
+
+public class Metrics implements DynamicMBean {
+	private static final AtomicInteger ids = new AtomicInteger(0);
+
+	private String type;		// type of the owner
+	private int id;			// distinguishes owners of one type
+	private ObjectName name;	// JMX name while registered, or null
+
+	private LinkedHashMap<String,LongAdder> counters;
+	private LinkedHashMap<String,LongSupplier> gauges;
+	private LinkedHashMap<String,Histogram> histograms;
+
+	/** Initialize a new Metrics object.
+	 *  @param type is the type of object the statistics are for
+	 */
+	Metrics(String type) {
+		this.type = type;
+		id = ids.incrementAndGet();
+		counters = new LinkedHashMap<String,LongAdder>();
+		gauges = new LinkedHashMap<String,LongSupplier>();
+		histograms = new LinkedHashMap<String,Histogram>();
+	}
+
+	/** Get a counter, creating it if necessary.
+	 *  @param name is the name of the counter
+	 *  @return the counter
+	 */
+	public synchronized LongAdder counter(String name) {
+		LongAdder c = counters.get(name);
+		if (c == null) {
+			c = new LongAdder(); counters.put(name,c);
+		}
+		return c;
+	}
+
+	/** Add a gauge.
+	 *  @param name is the name of the gauge
+	 *  @param value is called to read the gauge
+	 */
+	public synchronized void gauge(String name, LongSupplier value) {
+		gauges.put(name,value);
+	}
+
+	/** Get a histogram, creating it if necessary.
+	 *  @param name is the name of the histogram
+	 *  @return the histogram
+	 */
+	public synchronized Histogram histogram(String name) {
+		Histogram h = histograms.get(name);
+		if (h == null) {
+			h = new Histogram(); histograms.put(name,h);
+		}
+		return h;
+	}
+
+	/** Read all statistics.
+	 *  @return a map from names to current values, in the order
+	 *  the statistics were created: counters, then gauges, then
+	 *  histograms
+	 */
+	public synchronized Map<String,Long> snapshot() {
+		LinkedHashMap<String,Long> m = new LinkedHashMap<String,Long>();
+		for (Map.Entry<String,LongAdder> e : counters.entrySet())
+			m.put(e.getKey(), e.getValue().sum());
+		for (Map.Entry<String,LongSupplier> e : gauges.entrySet())
+			m.put(e.getKey(), e.getValue().getAsLong());
+		for (Map.Entry<String,Histogram> e : histograms.entrySet()) {
+			Histogram h = e.getValue();
+			String k = e.getKey();
+			m.put(k + ".count", h.count());
+			m.put(k + ".mean", h.mean());
+			m.put(k + ".p50", h.percentile(.5));
+			m.put(k + ".p99", h.percentile(.99));
+			m.put(k + ".max", h.max());
+		}
+		return m;
+	}
+
+	/** Register with the platform MBean server, if not yet done.
+	 *  Failure to register is reported, but is not fatal.
+	 */
+	public synchronized void register() {
+		if (name != null) return;
+		try {
+			ObjectName n = new ObjectName("rdt:type=" + type
+						      + ",id=" + id);
+			ManagementFactory.getPlatformMBeanServer()
+				.registerMBean(this,n);
+			name = n;
+		} catch(Exception e) {
+			System.err.println("Metrics:register: " + e);
+		}
+	}
+
+	/** Unregister from the platform MBean server, if registered. */
+	public synchronized void unregister() {
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer()
+				.unregisterMBean(name);
+		} catch(Exception e) {
+			System.err.println("Metrics:unregister: " + e);
+		}
+		name = null;
+	}
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Long v = snapshot().get(attribute);
+		if (v == null) throw new AttributeNotFoundException(attribute);
+		return v;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String,Long> m = snapshot();
+		AttributeList l = new AttributeList();
+		for (String a : attributes) {
+			if (m.containsKey(a)) l.add(new Attribute(a, m.get(a)));
+		}
+		return l;
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName()
+						     + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] sig)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		ArrayList<MBeanAttributeInfo> a = new ArrayList<MBeanAttributeInfo>();
+		for (String k : snapshot().keySet()) {
+			a.add(new MBeanAttributeInfo(k, "long", k,
+						     true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), type + " statistics",
+			a.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+
+	/** Histogram of non-negative values, in powers of 2.
+	 *  Bucket i counts the values v with 2^(i-1) <= v < 2^i, and
+	 *  bucket 0 counts zeroes, so percentiles are accurate to within
+	 *  a factor of 2.
+	 */
+	public static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max =
+			new LongAccumulator(Math::max, 0);
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		/** Add a value.
+		 *  @param v is the value; negative values count as 0
+		 */
+		public void record(long v) {
+			v = Math.max(0, v);
+			buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+			sum.add(v); max.accumulate(v);
+		}
+
+		/** Get the number of values.
+		 *  @return the number of values added
+		 */
+		public long count() {
+			long n = 0;
+			for (LongAdder b : buckets) n += b.sum();
+			return n;
+		}
+
+		/** Get the mean.
+		 *  @return the mean of the values, or 0 if there are none
+		 */
+		public long mean() {
+			long n = count();
+			return (n == 0 ? 0 : sum.sum() / n);
+		}
+
+		/** Get the largest value.
+		 *  @return the largest value added, or 0 if there are none
+		 */
+		public long max() { return max.get(); }
+
+		/** Estimate a percentile.
+		 *  @param q is the fraction of values, between 0 and 1
+		 *  @return the upper bound of the bucket holding the value
+		 *  that a fraction q of the values do not exceed, but at
+		 *  most the largest value
+		 */
+		public long percentile(double q) {
+			long n = count();
+			long k = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i].sum();
+				if (seen >= k && seen > 0)
+					return Math.min(max(), (1L << i) - 1);
+			}
+			return max();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/** Session demultiplexer for servers.
+ *
+ *  This class lets one server socket carry any number of Rdt sessions,
+ *  one per client. All sessions share one Sender and one Receiver
+ *  thread. Arriving packets are demultiplexed on their source address
+ *  using a session table; the first data or SYN packet from a new
+ *  address creates a session, and the listener's open() method is
+ *  called to create the Rdt that runs over it; other packets from
+ *  unknown addresses are left over from sessions already closed, and
+ *  are dropped. A session that has neither sent nor received a packet
+ *  for idleTime seconds is evicted: its Rdt is aborted and the
+ *  listener's closed() method is called. A session whose substrate is
+ *  stopped is closed the same way, but its Rdt is left alone.
+ *
+ *  Each session is a Substrate in its own right, and an Rdt uses it
+ *  just as it would use a UdpSubstrate.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MuxSubstrate {
+	/** Interface for the server application, to create and retire
+	 *  the Rdt objects for sessions.
+	 */
+	public interface Listener {
+		/** Create and start an Rdt for a new session.
+		 *  Called by the Receiver thread on first contact.
+		 *  @param sub is the session's substrate
+		 *  @param peer is the address of the client
+		 *  @return the started Rdt object
+		 */
+		Rdt open(Substrate sub, InetSocketAddress peer);
+
+		/** Report that a session has been evicted or stopped.
+		 *  Called by the Receiver thread, after an evicted session's
+		 *  Rdt is aborted.
+		 *  @param rdt is the session's Rdt object
+		 *  @param peer is the address of the client
+		 */
+		void closed(Rdt rdt, InetSocketAddress peer);
+	}
+
+	private DatagramSocket sock;
+	private Sender sndr;
+	private Receiver rcvr;
+	private PacketPool pool;
+	private Metrics metrics;	// shared by all sessions
+	private Listener listener;
+	private long idleTime;		// session idle time before eviction, ns
+
+	private HashMap<InetSocketAddress,Session> sessions; // Receiver only
+	private long nextCheck = 0;	// time of next eviction check
+	private int opened = 0, evicted = 0, closed = 0;
+
+	/** Initialize a new MuxSubstrate object.
+	 *  @param myIp is the IP address to bind to the socket
+	 *  @param port is the port number to bind to the socket
+	 *  @param discProb is a discard probability used to randomly discard
+	 *  packets sent by the sessions
+	 *  @param debug is a flag; if it is 1, each packet sent and received
+	 *  is printed out
+	 *  @param idleTime is the time in seconds after which an idle
+	 *  session is evicted
+	 *  @param listener is used to create and retire session Rdts
+	 */
+	MuxSubstrate(InetAddress myIp, int port, double discProb,
+		     boolean debug, double idleTime, Listener listener) {
+		this.idleTime = (long) (idleTime * 1000000000);
+		this.listener = listener;
+
+		// open and configure socket with timeout
+		sock = null;
+		try {
+			sock = new DatagramSocket(port,myIp);
+			sock.setSoTimeout(100);
+			sock.setReceiveBufferSize(1000000);
+		} catch(Exception e) {
+			System.out.println("unable to create socket: " + e);
+			System.exit(1);
+		}
+
+		sessions = new HashMap<InetSocketAddress,Session>();
+		pool = new PacketPool(4096);
+		metrics = new Metrics("MuxSubstrate");
+		sndr = new Sender(sock,null,discProb,debug,pool,metrics);
+		sndr.setMultiplexed(true);
+		rcvr = new Receiver(sock,this,debug,pool,metrics);
+		metrics.gauge("sessions", () -> opened - evicted);
+	}
+
+	/** Start MuxSubstrate running. */
+	public void start() {
+		metrics.register(); sndr.start(); rcvr.start();
+	}
+
+	/** Pace all packets sent on the shared socket.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  for no limit
+	 *  @param burst is the most bytes sent back-to-back
+	 */
+	public void setPacing(double rate, int burst) {
+		sndr.setPacing(rate,burst);
+	}
+
+	/** Record the packets of all sessions in a trace.
+	 *  Must be called before start().
+	 *  @param tracer is the tracer, or null for none
+	 */
+	public void setTracer(Tracer tracer) { sndr.setTracer(tracer); rcvr.setTracer(tracer); }
+
+	/** Wait for the Sender and Receiver to stop, then evict any
+	 *  remaining sessions.
+	 */
+	public void join() throws Exception {
+		sndr.join(); rcvr.join(); metrics.unregister();
+		for (Session s : sessions.values()) s.evict();
+		sessions.clear();
+		System.out.println("MuxSubstrate: opened " + opened
+				+ " sessions, evicted " + evicted + " idle, "
+				+ closed + " closed");
+	}
+
+	/** Hand an arriving packet to its session; called by the Receiver.
+	 *  Creates the session if this is the first data or SYN packet
+	 *  from peer, and drops any other packet from an unknown peer.
+	 *  @param p is the packet
+	 *  @param peer is the address it came from
+	 *  @param now is the current time in ns (from System.nanoTime())
+	 */
+	void deliver(Packet p, InetSocketAddress peer, long now) {
+		Session s = sessions.get(peer);
+		if (s == null) {
+			if (!p.isData() && p.type != Packet.SYN) {
+				p.release(); return;
+			}
+			s = new Session(peer);
+			sessions.put(peer,s); opened++;
+			s.lastActive = now;
+			s.rdt = listener.open(s,peer);
+		}
+		s.lastActive = now;
+		if (!s.rcvq.offer(p)) p.release(); // discard if rcvq full
+		else if (s.listener != null) s.listener.run();
+	}
+
+	/** Evict idle sessions and close stopped ones; called regularly
+	 *  by the Receiver.
+	 *  @param now is the current time in ns (from System.nanoTime())
+	 */
+	void tick(long now) {
+		if (now < nextCheck) return;
+		nextCheck = now + 100000000L; // check every 100 ms
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			Session s = it.next();
+			if (s.stopped) {
+				it.remove(); s.close(); closed++;
+			} else if (now - s.lastActive > idleTime) {
+				it.remove(); s.evict(); evicted++;
+			}
+		}
+	}
+
+	/** The substrate seen by the Rdt of one session. */
+	private class Session implements Substrate {
+		private InetSocketAddress peer;
+		private PacketQueue rcvq;
+		private volatile Runnable listener;
+		private volatile long lastActive;
+		private volatile boolean stopped = false;
+		private CountDownLatch done;
+		private Rdt rdt;
+
+		Session(InetSocketAddress peer) {
+			this.peer = peer;
+			rcvq = new PacketQueue(1000);
+			done = new CountDownLatch(1);
+		}
+
+		/** Abort the session's Rdt and report it to the listener. */
+		void evict() {
+			if (rdt != null) rdt.abort();
+			close();
+		}
+
+		/** Report the session to the listener as closed. */
+		void close() {
+			if (rdt != null)
+				MuxSubstrate.this.listener.closed(rdt,peer);
+			done.countDown();
+		}
+
+		public void start() {}
+		public void join() throws Exception { done.await(); }
+
+		/** Close the session at the next eviction check; the
+		 *  shared socket is left running.
+		 */
+		public void stop() { stopped = true; }
+		public PacketPool pool() { return pool; }
+
+		public void send(Packet p) {
+			p.peer = peer;
+			lastActive = System.nanoTime();
+			sndr.send(p);
+		}
+
+		public boolean ready() { return sndr.ready(); }
+		public boolean readyX(int x) { return sndr.readyX(x); }
+		public void setListener(Runnable listener) {
+			this.listener = listener;
+		}
+
+		public Packet receive() {
+			Packet p = null;
+			try {
+				p = rcvq.take();
+			} catch(Exception e) {
+				System.err.println("MuxSubstrate:receive: exception "
+						   + e);
+				System.exit(1);
+			}
+			return p;
+		}
+
+		public boolean incoming() { return rcvq.size() > 0; }
+
+		/** Sessions share one Sender, so a single session's rate
+		 *  cannot be applied to it; pacing is left to setPacing().
+		 */
+		public void setPacingRate(double rate) {}
+
+		/** Sessions share the statistics of the socket. */
+		public Metrics metrics() { return metrics; }
+	}
+}
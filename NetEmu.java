@@ -0,0 +1,373 @@
+/** In-memory network emulator.
+ *
+ *  This class links two Rdt objects in the same process through an
+ *  emulated network path, in place of a pair of UDP substrates, so
+ *  that paths with a large bandwidth-delay product or heavy loss can
+ *  be tried out on one machine. end(0) and end(1) are the substrates
+ *  at the two ends of the path.
+ *
+ *  Each direction of the path is a bottleneck link of a given
+ *  bandwidth, with a drop-tail queue, followed by a propagation delay.
+ *  Random jitter may be added to the delay, which also reorders
+ *  packets sent close together. Packets may be lost, either at random
+ *  or in bursts, using a Gilbert-Elliott model: the path alternates
+ *  between a good and a bad state, each with its own loss probability.
+ *  Packets may also be duplicated, or held back to arrive out of
+ *  order. Random choices come from generators seeded by the caller,
+ *  so runs with the same settings see the same sequence of losses;
+ *  they are not exactly repeatable, since thread timing still varies.
+ *
+ *  Packets are encoded and decoded on their way through, just as they
+ *  would be on a socket. A single thread delivers them when their
+ *  arrival time comes. Like the other substrates, the emulator stops
+ *  after 5 seconds without any traffic, once it has seen some, or
+ *  once both ends have been stopped.
+ */
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class NetEmu implements Runnable {
+	private static final long IDLE = 5000000000L; // idle time before stop
+
+	// path settings, the same in both directions
+	private double bandwidth;	// bytes per second, 0 if unlimited
+	private long delay;		// propagation delay in ns
+	private long jitter = 0;	// largest extra delay in ns
+	private int qlimit = 1000000;	// bottleneck queue size in bytes
+	private double lossGood = 0;	// loss probability in good state
+	private double lossBad = 0;	// loss probability in bad state
+	private double pGoodBad = 0;	// chance of going from good to bad
+	private double pBadGood = 1;	// chance of going from bad to good
+	private double dupProb = 0;	// chance of duplicating a packet
+	private double reorderProb = 0;	// chance of holding a packet back
+	private long reorderDelay = 0;	// extra delay of held packets in ns
+
+	private End[] ends;
+	private DelayQueue<Arrival> inFlight; // packets on their way
+	private AtomicLong arrivals;	// orders packets due at the same time
+	private Thread myThread;	// thread that executes run() method
+	private CountDownLatch done;
+	private volatile long firstEventTime, eventTime; // 0 until first packet
+
+	/** Initialize a new NetEmu object.
+	 *  @param bandwidth is the bottleneck bandwidth in bytes per
+	 *  second, in each direction; 0 for unlimited
+	 *  @param delay is the one-way propagation delay in seconds
+	 *  @param seed seeds the random number generators
+	 */
+	NetEmu(double bandwidth, double delay, long seed) {
+		this.bandwidth = bandwidth;
+		this.delay = (long) (delay * 1000000000); // sec to ns
+		ends = new End[] { new End(0,seed), new End(1,seed+1) };
+		inFlight = new DelayQueue<Arrival>();
+		arrivals = new AtomicLong(0);
+		done = new CountDownLatch(1);
+	}
+
+	/** Get one end of the path.
+	 *  @param i is 0 or 1
+	 *  @return the substrate for the Rdt at end i
+	 */
+	public Substrate end(int i) { return ends[i]; }
+
+	/** Add random jitter to the delay; must be called before start().
+	 *  Each packet's delay is increased by an amount drawn uniformly
+	 *  from 0 to jitter.
+	 *  @param jitter is the largest extra delay in seconds
+	 */
+	public void setJitter(double jitter) {
+		this.jitter = (long) (jitter * 1000000000);
+	}
+
+	/** Set the size of the bottleneck queue; must be called before
+	 *  start(). A packet that does not fit is dropped.
+	 *  @param qlimit is the queue size in bytes
+	 */
+	public void setQueue(int qlimit) { this.qlimit = qlimit; }
+
+	/** Lose packets at random; must be called before start().
+	 *  @param loss is the probability that a packet is lost
+	 */
+	public void setLoss(double loss) {
+		lossGood = loss; pGoodBad = 0; pBadGood = 1;
+	}
+
+	/** Lose packets in bursts; must be called before start().
+	 *  Before each packet, the path moves from the good state to the
+	 *  bad state with probability pGoodBad, and back with probability
+	 *  pBadGood, so bad periods last 1/pBadGood packets on average.
+	 *  @param pGoodBad is the chance of a move to the bad state
+	 *  @param pBadGood is the chance of a move to the good state
+	 *  @param lossGood is the loss probability in the good state
+	 *  @param lossBad is the loss probability in the bad state
+	 */
+	public void setBurstLoss(double pGoodBad, double pBadGood,
+				 double lossGood, double lossBad) {
+		this.pGoodBad = pGoodBad; this.pBadGood = pBadGood;
+		this.lossGood = lossGood; this.lossBad = lossBad;
+	}
+
+	/** Duplicate packets at random; must be called before start().
+	 *  @param dupProb is the probability that a packet arrives twice
+	 */
+	public void setDuplication(double dupProb) { this.dupProb = dupProb; }
+
+	/** Reorder packets; must be called before start().
+	 *  @param reorderProb is the probability that a packet is held back
+	 *  @param reorderDelay is the extra time in seconds for which
+	 *  it is held, letting later packets overtake it
+	 */
+	public void setReorder(double reorderProb, double reorderDelay) {
+		this.reorderProb = reorderProb;
+		this.reorderDelay = (long) (reorderDelay * 1000000000);
+	}
+
+	/** Instantiate run() thread and start it running, if not yet done. */
+	public synchronized void start() {
+		if (myThread != null) return;
+		for (End e : ends) e.metrics.register();
+		myThread = Threads.factory().newThread(this); myThread.start();
+	}
+
+	/** Wait for the emulator to stop. */
+	public void join() throws Exception { done.await(); }
+
+	/** Delivery thread hands packets to the receiving end once their
+	 *  arrival time has come. Runs until both ends are stopped or
+	 *  nothing has happened for IDLE ns, then prints statistics for
+	 *  both ends; packets still in flight are dropped.
+	 */
+	public void run() {
+		while (!(ends[0].stopped && ends[1].stopped) &&
+		       (eventTime == 0 || System.nanoTime() < eventTime + IDLE)) {
+			Arrival a = null;
+			try {
+				a = inFlight.poll(100,TimeUnit.MILLISECONDS);
+			} catch(Exception e) {
+				System.err.println("NetEmu:run: exception " + e);
+				System.exit(1);
+			}
+			if (a == null) continue; // check for termination
+			a.dst.deliver(a.p);
+			eventTime = System.nanoTime();
+		}
+		for (End e : ends) {
+			e.report(); e.metrics.unregister();
+		}
+		System.out.println("          runLength "
+			+ (((double) (eventTime - firstEventTime))/1000000000));
+		done.countDown();
+	}
+
+	/** A packet on its way to an end of the path. */
+	private class Arrival implements Delayed {
+		final long time;	// arrival time in ns
+		final long order;	// tie breaker for equal times
+		final Packet p;
+		final End dst;
+
+		Arrival(long time, Packet p, End dst) {
+			this.time = time; this.p = p; this.dst = dst;
+			order = arrivals.getAndIncrement();
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.nanoTime(),
+					    TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed d) {
+			Arrival a = (Arrival) d;
+			if (time != a.time) return (time < a.time ? -1 : 1);
+			return Long.compare(order, a.order);
+		}
+	}
+
+	/** The substrate seen by the Rdt at one end of the path.
+	 *  Holds the state of the direction that starts at this end.
+	 */
+	private class End implements Substrate {
+		private int id;
+		private Random rng;
+		private PacketPool pool;
+		private PacketQueue rcvq;
+		private volatile Runnable listener;
+
+		private boolean bad = false;	// Gilbert-Elliott state
+		private volatile long busyUntil = 0; // time the link becomes idle
+		private volatile boolean stopped = false;
+
+		private Metrics metrics;
+		private LongAdder sendCount, sendAck, lost, dropped, duplicated;
+		private LongAdder reordered, rcvCount, rcvAck, rcvDisc;
+
+		End(int id, long seed) {
+			this.id = id;
+			rng = new Random(seed);
+			pool = new PacketPool(4096);
+			rcvq = new PacketQueue(1000);
+
+			metrics = new Metrics("NetEmu");
+			sendCount = metrics.counter("dataSent");
+			sendAck = metrics.counter("acksSent");
+			lost = metrics.counter("lost");
+			dropped = metrics.counter("queueDrops");
+			duplicated = metrics.counter("duplicated");
+			reordered = metrics.counter("reordered");
+			rcvCount = metrics.counter("dataReceived");
+			rcvAck = metrics.counter("acksReceived");
+			rcvDisc = metrics.counter("arrivalsDiscarded");
+			metrics.gauge("rcvq", () -> rcvq.size());
+			metrics.gauge("queueBytes", () -> queued());
+		}
+
+		public void start() { NetEmu.this.start(); }
+		public void join() throws Exception { NetEmu.this.join(); }
+
+		/** Stop this end; the emulator stops once both ends have. */
+		public void stop() { stopped = true; }
+
+		public PacketPool pool() { return pool; }
+
+		/** Send a packet along the path to the other end.
+		 *  Decides whether it is lost, computes when it leaves the
+		 *  bottleneck link and when it arrives, and puts copies of it
+		 *  in flight. The packet itself is released.
+		 */
+		public synchronized void send(Packet p) {
+			long now = System.nanoTime();
+			eventTime = now;
+			if (firstEventTime == 0) firstEventTime = now;
+			if (p.isData()) sendCount.increment();
+			else sendAck.increment();
+
+			bad = (bad ? rng.nextDouble() >= pBadGood
+				   : rng.nextDouble() < pGoodBad);
+			if (rng.nextDouble() < (bad ? lossBad : lossGood)) {
+				lost.increment(); p.release(); return;
+			}
+			int len = p.hdrLen() + p.length();
+			long depart = now;
+			if (bandwidth > 0) {
+				long start = Math.max(now, busyUntil);
+				if ((start - now) * bandwidth / 1e9 + len > qlimit) {
+					dropped.increment(); p.release(); return;
+				}
+				depart = start + (long) (len * 1e9 / bandwidth);
+				busyUntil = depart;
+			}
+			End dst = ends[1-id];
+			long t = depart + delay + extra();
+			inFlight.add(new Arrival(t, copy(p,dst), dst));
+			if (rng.nextDouble() < dupProb) {
+				duplicated.increment();
+				t = depart + delay + extra();
+				inFlight.add(new Arrival(t, copy(p,dst), dst));
+			}
+			p.release();
+		}
+
+		/** Estimate the bytes waiting in the bottleneck queue.
+		 *  @return the bytes that have yet to leave the link
+		 */
+		private long queued() {
+			long t = busyUntil - System.nanoTime();
+			return (bandwidth > 0 && t > 0 ?
+				(long) (t * bandwidth / 1e9) : 0);
+		}
+
+		/** Pick the extra delay for a packet.
+		 *  @return jitter, plus reorderDelay if the packet is held back
+		 */
+		private long extra() {
+			long x = (jitter > 0 ? (long) (rng.nextDouble() * jitter) : 0);
+			if (rng.nextDouble() < reorderProb) {
+				reordered.increment(); x += reorderDelay;
+			}
+			return x;
+		}
+
+		/** Copy a packet into one from the receiving end's pool,
+		 *  by encoding and decoding it.
+		 *  @param p is the packet to copy
+		 *  @param dst is the receiving end
+		 *  @return the copy
+		 */
+		private Packet copy(Packet p, End dst) {
+			Packet q = dst.pool.alloc();
+			ByteBuffer b = q.buffer();
+			if (p.encode(b) < 0) {
+				System.err.println("NetEmu: packing error " + p);
+				System.exit(1);
+			}
+			b.flip();
+			if (!q.decode(b)) {
+				System.err.println("NetEmu: error while "
+						   + "unpacking packet");
+				System.exit(1);
+			}
+			return q;
+		}
+
+		/** Queue an arriving packet; called by the delivery thread.
+		 *  If the queue is full, the packet is discarded.
+		 *  @param p is the packet
+		 */
+		void deliver(Packet p) {
+			if (p.isData()) rcvCount.increment();
+			else rcvAck.increment();
+			if (!rcvq.offer(p)) { // discard if rcvq full
+				rcvDisc.increment(); p.release();
+			} else if (listener != null) listener.run();
+		}
+
+		/** Print statistics for this end. */
+		void report() {
+			System.out.println("  NetEmu: end " + id + " sent "
+				+ sendCount.sum() + " data packets, "
+				+ sendAck.sum() + " acks");
+			System.out.println("          lost " + lost.sum()
+				+ ", dropped " + dropped.sum()
+				+ " at queue, duplicated " + duplicated.sum()
+				+ ", reordered " + reordered.sum());
+			System.out.println("          received " + rcvCount.sum()
+				+ " data packets, " + rcvAck.sum() + " acks");
+			System.out.println("          discarded " + rcvDisc.sum()
+				+ " arrivals ");
+		}
+
+		/** The path never blocks a sender; a full queue drops. */
+		public boolean ready() { return true; }
+		public boolean readyX(int x) { return true; }
+
+		public void setListener(Runnable listener) {
+			this.listener = listener;
+		}
+
+		public Packet receive() {
+			Packet p = null;
+			try {
+				p = rcvq.take();
+			} catch(Exception e) {
+				System.err.println("NetEmu:receive: exception " + e);
+				System.exit(1);
+			}
+			return p;
+		}
+
+		public boolean incoming() { return rcvq.size() > 0; }
+
+		/** Packets enter the emulated link as soon as they are
+		 *  sent; pacing is left to the link's bandwidth.
+		 */
+		public void setPacingRate(double rate) {}
+
+		/** Each end has statistics for the direction starting
+		 *  there and for the packets arriving there.
+		 */
+		public Metrics metrics() { return metrics; }
+	}
+}
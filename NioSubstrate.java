@@ -0,0 +1,416 @@
+/** Substrate implementation using a non-blocking datagram channel.
+ *
+ *  Unlike UdpSubstrate, this class starts no threads of its own.
+ *  Its channel is registered with an IoLoop, whose thread reads and
+ *  writes packets through direct byte buffers whenever the channel is
+ *  ready. Several endpoints may share one IoLoop.
+ *
+ *  Like the Sender and Receiver used by UdpSubstrate, an endpoint
+ *  stops after 5 seconds without any traffic, once it has seen some,
+ *  unless it is stopped first.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class NioSubstrate implements Substrate {
+	private DatagramChannel chan;
+	private SelectionKey key;
+	private IoLoop loop;
+	private volatile InetSocketAddress peerAdr;
+	private double discProb;
+	private boolean debug;
+	private Tracer tracer;		// records packets, or null
+
+	private PacketQueue sendq;
+	private PacketQueue rcvq;
+	private PacketPool pool;
+	private volatile Runnable listener; // run when a packet is queued
+	private AtomicBoolean writeArmed; // true if loop has been asked to write
+
+	private ByteBuffer rbuf;	// direct buffer for arriving packets
+	private ByteBuffer wbuf;	// direct buffer for departing packets
+	private Packet unsent;		// packet the channel could not yet take
+	private TokenBucket bucket;	// paces transmissions
+	private long paceTime = 0;	// when unsent may go, 0 if not paced
+
+	private static final long IDLE = 5000000000L; // idle time before stop
+	private long firstEventTime, eventTime; // 0 until first packet
+	private volatile boolean stopped = false;
+	private CountDownLatch done;
+
+	private Metrics metrics;
+	private LongAdder sendCount, sendAck, discCount, discAck;
+	private LongAdder rcvCount, rcvAck, rcvDisc, paceCount;
+
+	/** Initialize a new NioSubstrate object.
+	 *  @param myIp is the IP address to bind to the channel
+	 *  @param port is the port number to bind to the channel (may be 0)
+	 *  @param peerAdr is the IP address/port pair for the peer host
+	 *  (may be null, if this object is being used in a server)
+	 *  @param discProb is a discard probability used to randomly discard
+	 *  packets received from the Rdt object
+	 *  @param debug is a flag; if it is 1, each packet sent and received
+	 *  is printed out
+	 *  @param loop is the IoLoop that performs IO for this object
+	 */
+	NioSubstrate(InetAddress myIp, int port, InetSocketAddress peerAdr,
+		     double discProb, boolean debug, IoLoop loop) {
+		this.peerAdr = peerAdr;
+		this.discProb = discProb;
+		this.debug = debug;
+		this.loop = loop;
+
+		// open and configure non-blocking channel
+		chan = null;
+		try {
+			chan = DatagramChannel.open();
+			chan.configureBlocking(false);
+			chan.setOption(StandardSocketOptions.SO_RCVBUF,1000000);
+			chan.bind(new InetSocketAddress(myIp,port));
+		} catch(Exception e) {
+			System.out.println("unable to create channel: " + e);
+			System.exit(1);
+		}
+
+		pool = new PacketPool(4096);
+		sendq = new PacketQueue(1000);
+		rcvq = new PacketQueue(1000);
+		writeArmed = new AtomicBoolean(false);
+		rbuf = ByteBuffer.allocateDirect(2000);
+		wbuf = ByteBuffer.allocateDirect(2000);
+		done = new CountDownLatch(1);
+		bucket = new TokenBucket(0,TokenBucket.BURST);
+
+		metrics = new Metrics("NioSubstrate");
+		sendCount = metrics.counter("dataSent");
+		sendAck = metrics.counter("acksSent");
+		discCount = metrics.counter("dataDiscarded");
+		discAck = metrics.counter("acksDiscarded");
+		paceCount = metrics.counter("pacingDelays");
+		rcvCount = metrics.counter("dataReceived");
+		rcvAck = metrics.counter("acksReceived");
+		rcvDisc = metrics.counter("arrivalsDiscarded");
+		metrics.gauge("sendq", () -> sendq.size());
+		metrics.gauge("rcvq", () -> rcvq.size());
+	}
+
+	/** Record the packets sent, discarded and received in a trace.
+	 *  Must be called before start().
+	 *  @param tracer is the tracer, or null for none
+	 */
+	public void setTracer(Tracer tracer) { this.tracer = tracer; }
+
+	/** Start Substrate running, by adding it to its IoLoop. */
+	public void start() {
+		metrics.register(); loop.register(this); loop.start();
+	}
+
+	/** Wait for Substrate to stop. */
+	public void join() throws Exception { done.await(); }
+
+	/** Stop the endpoint; the loop closes it once its queued packets
+	 *  have been written.
+	 */
+	public void stop() { stopped = true; loop.wakeup(); }
+
+	/** Get the packet pool shared by this substrate and its user.
+	 *  @return the pool
+	 */
+	public PacketPool pool() { return pool; }
+
+	/** Send a packet.
+	 *  @param p is a packet to be sent; the reference to it passes
+	 *  to the substrate, which releases it once transmitted
+	 */
+	public void send(Packet p) {
+		try {
+			sendq.put(p);
+		} catch(Exception e) {
+			System.err.println("NioSubstrate:send sendq exception " + e);
+			System.exit(1);
+		}
+		// ask the loop for write readiness, unless already done
+		if (!writeArmed.getAndSet(true)) armWrite();
+	}
+
+	/** Test if substrate is ready to send more packets.
+	 *  @return true if substrate is ready
+	 */
+	public boolean ready() { return sendq.remainingCapacity() > 0; }
+
+	/** Test if substrate is ready to accept x more packets.
+	 *  @return true if substrate is ready
+	 */
+	public boolean readyX(int x) { return sendq.remainingCapacity() > x; }
+
+	/** Register a listener to be run when a packet arrives.
+	 *  @param listener is run by the loop thread each time
+	 *  a packet becomes available to receive(); may be null
+	 */
+	public void setListener(Runnable listener) { this.listener = listener; }
+
+	/** Retrieve the next packet from the substrate.
+	 *  @return the next incoming packet; blocks if none available
+	 */
+	public Packet receive() {
+		Packet p = null;
+		try {
+			p = rcvq.take();
+		} catch(Exception e) {
+			System.err.println("NioSubstrate:receive: exception " + e);
+			System.exit(1);
+		}
+		return p;
+	}
+
+	/** Test for the presence of incoming packets.
+	 *  @return true if there are packets available to be received.
+	 */
+	public boolean incoming() { return rcvq.size() > 0; }
+
+	/** Pace packets with a token bucket.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  for no limit
+	 *  @param burst is the most bytes sent back-to-back
+	 */
+	public void setPacing(double rate, int burst) {
+		bucket.setBurst(burst); bucket.setRate(rate);
+	}
+
+	/** Set the rate at which packets are paced onto the network.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  for no limit
+	 */
+	public void setPacingRate(double rate) { bucket.setRate(rate); }
+
+	/** Get the substrate's statistics.
+	 *  @return live statistics; they are registered with JMX from
+	 *  start() until the endpoint is closed
+	 */
+	public Metrics metrics() { return metrics; }
+
+	/** Add write interest to the channel's key and wake up the loop.
+	 *  Does nothing until the channel has been registered, or while
+	 *  the peer address is unknown; register() and handleRead()
+	 *  check writeArmed for that case.
+	 */
+	private void armWrite() {
+		SelectionKey k = key;
+		if (k == null || peerAdr == null) return;
+		try {
+			k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} catch(CancelledKeyException e) {
+			return; // endpoint has been closed
+		}
+		loop.wakeup();
+	}
+
+	/** Register channel with a selector; called by the loop thread.
+	 *  @param sel is the loop's selector
+	 *  @return true on success
+	 */
+	boolean register(Selector sel) {
+		try {
+			key = chan.register(sel, SelectionKey.OP_READ, this);
+		} catch(Exception e) {
+			System.err.println("NioSubstrate: register exception " + e);
+			System.exit(1);
+		}
+		if (writeArmed.get()) armWrite();
+		return true;
+	}
+
+	/** Get the time at which this endpoint stops, if nothing happens.
+	 *  @return the deadline in ns, 0 if it has been stopped and has
+	 *  nothing left to write, or Long.MAX_VALUE if no packet has been
+	 *  sent or received yet
+	 */
+	long deadline() {
+		if (stopped && (peerAdr == null ||
+				(unsent == null && sendq.isEmpty())))
+			return 0;
+		return (eventTime == 0 ? Long.MAX_VALUE : eventTime + IDLE);
+	}
+
+	/** Get the time at which a packet held back by pacing may be sent.
+	 *  @return the time in ns, or Long.MAX_VALUE if none is waiting
+	 */
+	long wakeTime() { return (paceTime == 0 ? Long.MAX_VALUE : paceTime); }
+
+	/** Resume writing once a paced packet's time has come;
+	 *  called by the loop thread.
+	 */
+	void resume() { paceTime = 0; handleWrite(); }
+
+	/** Read all waiting packets from the channel into rcvq;
+	 *  called by the loop thread.
+	 */
+	void handleRead() {
+		while (true) {
+			SocketAddress adr;
+			rbuf.clear();
+			try {
+				adr = chan.receive(rbuf);
+			} catch(Exception e) {
+				System.err.println("NioSubstrate: receive "
+						   + "exception: " + e);
+				System.exit(1); return;
+			}
+			if (adr == null) return; // nothing more to read
+			if (rbuf.position() > Packet.BUFLEN) {
+				rcvDisc.increment(); // too long to be ours
+				continue;
+			}
+			long now = System.nanoTime();
+			eventTime = now;
+			if (firstEventTime == 0) firstEventTime = now;
+			// set peerAdr if not yet initialized
+			// otherwise, check that it's the same peer
+			if (peerAdr == null) {
+				peerAdr = (InetSocketAddress) adr;
+				if (writeArmed.get()) armWrite();
+			} else if (!adr.equals(peerAdr)) {
+				System.err.println("NioSubstrate: received "
+					+ "packet from unexpected sender: " + adr);
+				System.exit(1);
+			}
+			rbuf.flip();
+			Packet p = pool.alloc();
+			ByteBuffer b = p.buffer();
+			b.put(rbuf); b.flip();
+			if (!p.decode(b)) {
+				System.err.println("NioSubstrate: error while "
+						   + "unpacking packet");
+				System.exit(1);
+			}
+			if (debug) {
+				System.out.println(chan.socket()
+					.getLocalSocketAddress() + " received from "
+					+ adr + " " + p);
+				System.out.flush();
+			}
+			if (p.isData()) rcvCount.increment();
+			else rcvAck.increment();
+			if (tracer != null)
+				tracer.record(Tracer.RECEIVED, p,
+					      rcvq.remainingCapacity() == 0);
+			if (!rcvq.offer(p)) { // discard if rcvq full
+				rcvDisc.increment(); p.release();
+			} else if (listener != null) listener.run();
+		}
+	}
+
+	/** Write queued packets to the channel until the queue is empty,
+	 *  the channel cannot take any more or pacing holds the next one
+	 *  back; called by the loop thread. While a packet is held back,
+	 *  write interest is dropped and the loop calls resume() at its
+	 *  wakeTime().
+	 */
+	void handleWrite() {
+		if (peerAdr == null) {
+			// can't send yet; handleRead re-arms when peer is known
+			key.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+		while (true) {
+			Packet p = unsent;
+			boolean fresh = (p == null); // held packets are not re-discarded
+			unsent = null;
+			if (p == null) {
+				p = sendq.poll();
+				if (p != null && p.isData()) sendCount.increment();
+				else if (p != null) sendAck.increment();
+			}
+			if (p == null) {
+				// queue drained; drop write interest, then check
+				// for a packet that arrived in the meantime
+				key.interestOps(SelectionKey.OP_READ);
+				writeArmed.set(false);
+				if (sendq.isEmpty() || writeArmed.getAndSet(true))
+					return;
+				continue;
+			}
+			long now = System.nanoTime();
+			eventTime = now;
+			if (firstEventTime == 0) firstEventTime = now;
+			if (fresh && Math.random() < discProb) {
+				if (p.isData()) discCount.increment();
+				else discAck.increment();
+				if (debug) {
+					System.out.println("discarding " + p);
+					System.out.flush();
+				}
+				if (tracer != null) tracer.record(Tracer.SENT,p,true);
+				p.release();
+				continue;
+			}
+			wbuf.clear();
+			if (p.encode(wbuf) < 0) {
+				System.err.println("NioSubstrate: packing error " +p);
+				System.exit(1);
+			}
+			wbuf.flip();
+			long w = bucket.reserve(wbuf.remaining(),now);
+			if (w > 0) { // wait for tokens without write interest
+				paceCount.increment();
+				unsent = p; paceTime = now + w;
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+			int n = 0;
+			try {
+				n = chan.send(wbuf,peerAdr);
+			} catch(Exception e) {
+				System.err.println("NioSubstrate: send error " + p);
+				System.exit(1);
+			}
+			if (n == 0) { // socket buffer full, retry when writable
+				unsent = p;
+				key.interestOps(SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+				return;
+			}
+			if (debug) {
+				System.out.println(chan.socket()
+					.getLocalSocketAddress() + " sending to "
+					+ peerAdr + " " + p);
+				System.out.flush();
+			}
+			if (tracer != null) tracer.record(Tracer.SENT,p,false);
+			p.release();
+		}
+	}
+
+	/** Close the channel and report statistics; called by the loop
+	 *  thread once the endpoint has been idle for too long, or has
+	 *  been stopped.
+	 */
+	void close() {
+		key.cancel();
+		try {
+			chan.close();
+		} catch(Exception e) {
+			System.err.println("NioSubstrate: close exception " + e);
+		}
+		System.out.println("  NioSubstrate: sent " + sendCount.sum() 
+				+ " data packets, " + sendAck.sum() + " acks"); 
+		System.out.println("          discarded " + discCount.sum() 
+				+ " data packets, " + discAck.sum() + " acks"); 
+		System.out.println("          received " + rcvCount.sum() 
+				+ " data packets, " + rcvAck.sum() + " acks"); 
+		System.out.println("          discarded " + rcvDisc.sum()
+				+ " arrivals "); 
+		System.out.println("          " + pool.created()
+				+ " packets created by pool");
+		System.out.println("          runLength " 
+			+ (((double) (eventTime - firstEventTime))/1000000000));
+		metrics.unregister();
+		done.countDown();
+	}
+}
@@ -2,13 +2,93 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.nio.*;
+import java.util.concurrent.atomic.*;
 
-/** Class for working with studio3 packets. */
+/** Class for working with studio3 packets.
+ *  A packet consists of a 3 byte header (type and sequence number)
+ *  followed by an arbitrary binary payload. Data packets that carry
+ *  a piggybacked ack have the ack's sequence number after their own,
+ *  and packets that advertise a receive window have it next; the WND
+ *  flag in the type byte says if it is present. In a wide packet,
+ *  flagged by LONG, the sequence number, ack and window take 4 bytes
+ *  each instead of 2, so the header is 5 bytes or more; these are
+ *  used with windows too large for 15 bit sequence numbers. The
+ *  payload is held as a ByteBuffer; the bytes from its position to
+ *  its limit are the payload. The payload may be a view of a larger
+ *  buffer, such as the one a packet was received into, so that
+ *  packets can be encoded and decoded without copying.
+ *
+ *  Packets obtained from a PacketPool are reference counted. Each
+ *  holder of a reference calls release() when done with the packet,
+ *  and the packet returns to its pool when the last one does so.
+ *  Handing a packet to Substrate.send() passes one reference along.
+ *  For packets created with new, retain() and release() do nothing.
+ */
 public class Packet {
+	public static final int HDRLEN = 3;	// header length in bytes
+	public static final int MAXLEN = 1400;	// max packet length in bytes
+	public static final int MAXPAYLOAD = MAXLEN - HDRLEN;
+	public static final int BUFLEN = 1472; // max datagram we accept
+
+	// packet types; a peer that only knows DATA and ACK treats any
+	// other type as an ACK, so new types must carry a sequence number
+	// that is valid as a plain (cumulative) ack, unless they are only
+	// sent to peers that are configured to accept them
+	public static final byte DATA = 0;	// data packet
+	public static final byte ACK = 1;	// acknowledgment
+	public static final byte SACK = 2;	// selective acknowledgment;
+		// seqNum is the last packet received in order, and bit i
+		// of the payload (bit 7 of byte 0 first) is set if packet
+		// seqNum+1+i has been received
+	public static final byte DATA_ACK = 3;	// data packet with a
+		// piggybacked cumulative ack in ackNum; only sent to peers
+		// that piggyback acks themselves
+	public static final byte FEC = 4;	// parity of a group of data
+		// packets, for forward error correction; only sent to peers
+		// that use a FecSubstrate, and may be up to BUFLEN long
+	public static final byte SYN = 5;	// connection request
+	public static final byte SYN_ACK = 6;	// answer to a SYN
+	public static final byte FIN = 7;	// end of the data; seqNum
+		// follows that of the last data packet, and it is acked like
+		// one. SYN, SYN_ACK and FIN are only sent to peers that
+		// manage connections
+
+	// flags in the upper bits of the type byte on the wire; they are
+	// not part of the type field, but imply the presence of other
+	// fields in the header
+	public static final int WND = 0x10;	// rwnd follows
+	public static final int MORE = 0x20;	// more fragments follow
+	public static final int BUNDLE = 0x40;	// payload holds several
+		// messages, each preceded by its 2 byte length
+	public static final int LONG = 0x80;	// numbers take 4 bytes
+	private static final int KIND = 0x0f;	// bits that give the type
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
 	// packet fields - note: all are public
 	public byte type;		// packet type
-	public short seqNum;		// sequence number in [0,2^15)
-	public String payload;		// application payload
+	public int seqNum;		// sequence number in [0,2^15),
+					// or [0,2^30) if wide
+	public int ackNum;		// piggybacked ack, in DATA_ACK only
+	public int rwnd;		// advertised receive window in
+					// packets, or -1 if not advertised
+	public boolean wide;		// true if numbers are sent as 4 bytes
+	public boolean more;		// true for all but the last
+					// fragment of a message
+	public Packet next;		// next fragment, in a message
+					// that has been reassembled
+	public boolean bundle;		// true if the payload is a bundle
+					// of length-prefixed messages
+	public ByteBuffer payload;	// application payload
+	public InetSocketAddress peer;	// remote address, or null if
+					// implied by the substrate
+
+	private ByteBuffer store;	// receive buffer owned by this packet
+
+	private PacketPool pool;	// pool to return to, or null
+	private volatile int refs;	// number of references held
+	private static final AtomicIntegerFieldUpdater<Packet> REFS =
+		AtomicIntegerFieldUpdater.newUpdater(Packet.class,"refs");
 
 	/** Constructor, initializes fields to default values. */
 	public Packet() { clear(); }
@@ -17,7 +97,172 @@ public class Packet {
 	 *  Initializes all fields to an undefined value.
  	 */
 	public void clear() {
-		type = 0; seqNum = 0; payload = "";
+		type = DATA; seqNum = 0; ackNum = 0; rwnd = -1;
+		more = false; next = null; bundle = false; wide = false;
+		payload = EMPTY; peer = null;
+	}
+
+	/** Attach the packet to a pool, with a single reference.
+	 *  @param pool is the pool the packet returns to when released
+	 */
+	void attach(PacketPool pool) { this.pool = pool; refs = 1; }
+
+	/** Add a reference to a pooled packet.
+	 *  @return this packet
+	 */
+	public Packet retain() {
+		if (pool != null) REFS.incrementAndGet(this);
+		return this;
+	}
+
+	/** Release a reference to a pooled packet.
+	 *  The packet returns to its pool when the last reference is
+	 *  released, and must not be used by this holder afterwards.
+	 */
+	public void release() {
+		if (pool != null && REFS.decrementAndGet(this) == 0)
+			pool.free(this);
+	}
+
+	/** Copy a payload into the packet's own buffer.
+	 *  @param src is a buffer whose bytes from position to limit
+	 *  become the payload; its position is not changed
+	 *  @return true on success, false if the payload is too long
+	 */
+	public boolean setPayload(ByteBuffer src) {
+		return setPayload(src, src.position(), src.remaining());
+	}
+
+	/** Copy part of a buffer into the packet's own buffer.
+	 *  @param src is a buffer holding the payload; its position
+	 *  is not changed
+	 *  @param off is the index in src at which the payload starts
+	 *  @param n is the payload length
+	 *  @return true on success, false if the payload is too long
+	 */
+	public boolean setPayload(ByteBuffer src, int off, int n) {
+		if (n > MAXPAYLOAD) return false;
+		ByteBuffer b = buffer();
+		b.put(0, src, off, n); b.limit(n);
+		payload = b;
+		return true;
+	}
+
+	/** Test if the packet carries data.
+	 *  @return true for DATA and DATA_ACK packets
+	 */
+	public boolean isData() { return type == DATA || type == DATA_ACK; }
+
+	/** Get the header length.
+	 *  @return the number of header bytes for this packet's type
+	 */
+	public int hdrLen() {
+		int w = (wide ? 4 : 2);
+		return 1 + w + (type == DATA_ACK ? w : 0) + (rwnd >= 0 ? w : 0);
+	}
+
+	/** Get the longest allowed packet.
+	 *  @return the limit on header plus payload for this packet's type
+	 */
+	private int maxLen() { return type == FEC ? BUFLEN : MAXLEN; }
+
+	/** Get the type byte sent on the wire.
+	 *  @return the type, with the flags for the optional fields
+	 */
+	byte wireType() {
+		return (byte) (type | (rwnd >= 0 ? WND : 0) | (more ? MORE : 0)
+				    | (bundle ? BUNDLE : 0) | (wide ? LONG : 0));
+	}
+
+	/** Get the length of the payload.
+	 *  @return the number of payload bytes
+	 */
+	public int length() { return payload.remaining(); }
+
+	/** Get a buffer to receive a packet into.
+	 *  The buffer belongs to this packet and is allocated on first
+	 *  use. It is cleared, and large enough for any datagram that we
+	 *  accept. Once data has been placed in it, decode(buffer())
+	 *  makes the packet refer to it without copying.
+	 *  @return the packet's own buffer
+	 */
+	public ByteBuffer buffer() {
+		if (store == null) store = ByteBuffer.allocate(BUFLEN);
+		store.clear();
+		return store;
+	}
+
+	/** Encode the packet into a buffer.
+	 *  Writes the header and payload at the buffer's position and
+	 *  advances the position past them. The payload's position is
+	 *  not changed. Fails if the resulting packet exceeds the allowed
+	 *  length of 1400 bytes (BUFLEN for a parity packet) or the space
+	 *  remaining in the buffer.
+	 *  @param out is the buffer to write to
+	 *  @return the packet length, or -1 on failure
+	 */
+	public int encode(ByteBuffer out) {
+		int n = payload.remaining();
+		int pos = out.position();
+		int hlen = hdrLen();
+		if (hlen + n > maxLen() || hlen + n > out.remaining())
+			return -1;
+		out.put(pos, wireType());
+		int x = put(out, pos+1, seqNum);
+		if (type == DATA_ACK) x = put(out, x, ackNum);
+		if (rwnd >= 0) put(out, x, rwnd);
+		out.put(pos+hlen, payload, payload.position(), n);
+		out.position(pos + hlen + n);
+		return hlen + n;
+	}
+
+	/** Write a number into a buffer, in 2 bytes or, if wide, 4.
+	 *  @param out is the buffer
+	 *  @param x is the index to write at
+	 *  @param v is the number
+	 *  @return the index following the number
+	 */
+	private int put(ByteBuffer out, int x, int v) {
+		if (wide) { out.putInt(x, v); return x + 4; }
+		out.putShort(x, (short) v); return x + 2;
+	}
+
+	/** Read a number from a buffer, in 2 bytes or, if wide, 4.
+	 *  @param in is the buffer
+	 *  @param x is the index to read at
+	 *  @return the number
+	 */
+	private int get(ByteBuffer in, int x) {
+		return (wide ? in.getInt(x) : in.getShort(x));
+	}
+
+	/** Decode the packet from a buffer.
+	 *  Reads the header from the bytes between the buffer's position
+	 *  and limit. The payload becomes the buffer itself, with its
+	 *  position advanced past the header; nothing is copied, so the
+	 *  buffer must not be reused while the packet is in use.
+	 *  @param in is the buffer holding the packet
+	 *  @return true on success, false if the packet is too short
+	 */
+	public boolean decode(ByteBuffer in) {
+		int pos = in.position();
+		if (in.remaining() < HDRLEN) return false;
+		int t = in.get(pos);
+		type = (byte) (t & KIND);
+		rwnd = ((t & WND) != 0 ? 0 : -1);
+		more = (t & MORE) != 0;
+		bundle = (t & BUNDLE) != 0;
+		wide = (t & LONG) != 0;
+		int hlen = hdrLen();
+		if (in.remaining() < hlen) return false;
+		int w = (wide ? 4 : 2);
+		seqNum = get(in, pos+1);
+		int x = pos + 1 + w;
+		if (type == DATA_ACK) { ackNum = get(in, x); x += w; }
+		if (rwnd >= 0) rwnd = Math.max(0, get(in, x));
+		in.position(pos + hlen);
+		payload = in;
+		return true;
 	}
 
 	/** Pack attributes defining packet fields into buffer.
@@ -27,41 +272,94 @@ public class Packet {
 	 *  containing the packet payload.
 	 */
 	public byte[] pack() {
-		byte[] pbuf;
-		try { pbuf = payload.getBytes("US-ASCII");
-		} catch(Exception e) { return null; }
-		if (pbuf.length > 1400 - 3) return null;
-		ByteBuffer bbuf = ByteBuffer.allocate(3 + pbuf.length);
-		bbuf.order(ByteOrder.BIG_ENDIAN);
-		bbuf.put(type); bbuf.putShort(seqNum);
-		bbuf.put(pbuf);
-		return bbuf.array();
+		byte[] pbuf = new byte[hdrLen() + payload.remaining()];
+		if (pack(pbuf,0) < 0) return null;
+		return pbuf;
+	}
+
+	/** Pack attributes defining packet fields into part of an array.
+	 *  Like pack(), but writes into a caller-provided buffer, so that
+	 *  no memory is allocated.
+	 *  @param buf is the array to pack into
+	 *  @param off is the offset in buf at which the packet starts
+	 *  @return the packet length, or -1 if the packet does not fit in
+	 *  1400 bytes (BUFLEN for a parity packet) or in the space left
+	 *  in buf
+	 */
+	public int pack(byte[] buf, int off) {
+		int n = payload.remaining();
+		int hlen = hdrLen();
+		int len = hlen + n;
+		if (len > maxLen() || off + len > buf.length) return -1;
+		buf[off] = wireType();
+		int x = put(buf, off+1, seqNum);
+		if (type == DATA_ACK) x = put(buf, x, ackNum);
+		if (rwnd >= 0) put(buf, x, rwnd);
+		payload.get(payload.position(), buf, off+hlen, n);
+		return len;
+	}
+
+	/** Write a number into an array, in 2 bytes or, if wide, 4,
+	 *  most significant byte first.
+	 *  @param buf is the array
+	 *  @param x is the index to write at
+	 *  @param v is the number
+	 *  @return the index following the number
+	 */
+	private int put(byte[] buf, int x, int v) {
+		if (wide) {
+			buf[x++] = (byte) (v >> 24); buf[x++] = (byte) (v >> 16);
+		}
+		buf[x++] = (byte) (v >> 8); buf[x++] = (byte) v;
+		return x;
 	}
 
 	/** Unpack attributes defining packet fields from buffer.
+	 *  The payload is copied, so buf may be reused afterwards.
 	 *  @param buf is a byte array containing the packet
 	 *  (or if you like, the payload of a UDP packet).
 	 *  @param bufLen is the number of valid bytes in buf
 	 */
 	public boolean unpack(byte[] buf, int bufLen) {
-		if (bufLen < 3) return false;
-		ByteBuffer bbuf = ByteBuffer.wrap(buf);
-		bbuf.order(ByteOrder.BIG_ENDIAN);
-		type = bbuf.get(); seqNum = bbuf.getShort();
-		try { payload = new String(buf,3,bufLen-3,"US-ASCII");
-		} catch(Exception e) { return false; }
-		return true;
+		if (bufLen < HDRLEN) return false;
+		ByteBuffer b = ByteBuffer.allocate(bufLen);
+		b.put(buf,0,bufLen); b.flip();
+		return decode(b);
 	}
 
 	/** Create String representation of packet.
-	 *  The resulting String is produced using the defined
-	 *  attributes and is formatted with one field per line,
-	 *  allowing it to be used as the actual buffer contents.
+	 *  Data packets show their payload as US-ASCII text, and selective
+	 *  acks list the offsets of the packets they report beyond seqNum.
+	 *  An advertised window is shown as wnd[n].
 	 */
 	public String toString() {
-		if (type == 0)
-			return "data[" + seqNum + "] " + payload;
+		StringBuilder sb = new StringBuilder();
+		if (isData()) {
+			sb.append("data[" + seqNum + "] ");
+			if (type == DATA_ACK) sb.append("ack[" + ackNum + "] ");
+			if (rwnd >= 0) sb.append("wnd[" + rwnd + "] ");
+			if (more) sb.append("more ");
+			if (bundle) sb.append("bundle ");
+			for (int i = payload.position(); i < payload.limit(); i++)
+				sb.append((char) (payload.get(i) & 0x7f));
+		} else if (type == SACK) {
+			sb.append("sack[" + seqNum + "]");
+			for (int i = 0; i < 8*payload.remaining(); i++) {
+				if ((payload.get(payload.position() + i/8)
+				     & (0x80 >> (i%8))) != 0)
+					sb.append(" +" + (i+1));
+			}
+		} else if (type == FEC)
+			sb.append("fec[" + seqNum + "] len " + length());
+		else if (type == SYN)
+			sb.append("syn");
+		else if (type == SYN_ACK)
+			sb.append("syn-ack");
+		else if (type == FIN)
+			sb.append("fin[" + seqNum + "]");
 		else
-			return "ack[" + seqNum + "]";
+			sb.append("ack[" + seqNum + "]");
+		if (!isData() && rwnd >= 0) sb.append(" wnd[" + rwnd + "]");
+		return sb.toString();
 	}
 }
@@ -0,0 +1,107 @@
+/** Pool of recyclable packets.
+ *
+ *  A pool is shared by the threads that pass packets to each other:
+ *  a Receiver allocates a packet for each arriving datagram, the Rdt
+ *  allocates packets for outgoing messages and acks, and packets come
+ *  back to the pool when their last reference is released, once they
+ *  have been acked, delivered or transmitted. In steady state, packets
+ *  are reused rather than allocated, so no garbage is produced per
+ *  packet.
+ *
+ *  The free list is a bounded lock-free ring (Vyukov's multi-producer,
+ *  multi-consumer queue), so neither alloc() nor free() allocates or
+ *  blocks. If the free list is empty, a new packet is created; if it
+ *  is full, a freed packet is left to the garbage collector.
+ */
+
+import java.util.concurrent.atomic.*;
+
+public class PacketPool {
+	private final int mask;		// ring size - 1
+	private final AtomicReferenceArray<Packet> ring;
+	private final AtomicLongArray seq; // per-slot sequence numbers
+	private final AtomicLong head;	// next slot to take from
+	private final AtomicLong tail;	// next slot to put into
+
+	private final AtomicLong created; // number of packets created
+
+	/** Initialize a new PacketPool object.
+	 *  @param capacity is the maximum number of free packets kept;
+	 *  it is rounded up to a power of 2
+	 */
+	PacketPool(int capacity) {
+		int n = Integer.highestOneBit(Math.max(2,capacity-1)) << 1;
+		mask = n - 1;
+		ring = new AtomicReferenceArray<Packet>(n);
+		seq = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) seq.set(i,i);
+		head = new AtomicLong(0); tail = new AtomicLong(0);
+		created = new AtomicLong(0);
+	}
+
+	/** Get a packet from the pool.
+	 *  @return a cleared packet holding one reference; it returns to
+	 *  this pool when that reference (and any later ones obtained with
+	 *  retain()) is released
+	 */
+	public Packet alloc() {
+		Packet p = take();
+		if (p == null) {
+			p = new Packet(); created.incrementAndGet();
+		}
+		p.clear();
+		p.attach(this);
+		return p;
+	}
+
+	/** Return a packet to the pool; called by Packet.release().
+	 *  @param p is a packet with no remaining references
+	 */
+	void free(Packet p) {
+		long pos = tail.get();
+		while (true) {
+			int i = (int) (pos & mask);
+			long dif = seq.get(i) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos,pos+1)) {
+					ring.set(i,p); seq.set(i,pos+1);
+					return;
+				}
+				pos = tail.get();
+			} else if (dif < 0) {
+				return; // ring is full, drop packet
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/** Take a packet from the ring.
+	 *  @return a free packet, or null if the ring is empty
+	 */
+	private Packet take() {
+		long pos = head.get();
+		while (true) {
+			int i = (int) (pos & mask);
+			long dif = seq.get(i) - (pos+1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos,pos+1)) {
+					Packet p = ring.get(i);
+					ring.set(i,null); seq.set(i,pos+mask+1);
+					return p;
+				}
+				pos = head.get();
+			} else if (dif < 0) {
+				return null; // ring is empty
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	/** Get the number of packets this pool has created.
+	 *  @return number of packets allocated from the heap; this stops
+	 *  growing once the pool has warmed up
+	 */
+	public long created() { return created.get(); }
+}
@@ -0,0 +1,211 @@
+/** Bounded queue of packets passed from one thread to another.
+ *
+ *  Each of the queues between an application, an Rdt and its substrate
+ *  has exactly one producer and one consumer, so it needs no lock: the
+ *  queue is a ring whose tail is advanced only by the producer and
+ *  whose head only by the consumer. Each side keeps a cached copy of
+ *  the other's index and reads the real one only when the cached copy
+ *  says the ring is full (or empty), and head and tail sit on separate
+ *  cache lines, so that in steady state the two threads do not contend
+ *  for the same memory. offer(), poll() and drainTo() never block and
+ *  never wait for the other thread.
+ *
+ *  put(), take() and the timed poll() block as their counterparts in
+ *  BlockingQueue do: the waiting thread parks, after registering itself
+ *  so that the other side unparks it once it has made room (or added a
+ *  packet). size() and remainingCapacity() may be called by any thread.
+ *
+ *  A queue that several threads add to (or take from) may still be used,
+ *  as long as they hold a common lock while doing so.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class PacketQueue {
+	// positions in idx; the consumer's pair and the producer's pair
+	// are 120 bytes apart, so they never share a cache line
+	private static final int HEAD = 16;	 // next packet to take
+	private static final int TAIL_SEEN = 17; // consumer's copy of tail
+	private static final int TAIL = 32;	 // next slot to fill
+	private static final int HEAD_SEEN = 33; // producer's copy of head
+	private static final int SPINS = 64;	 // polls before parking
+
+	private final Packet[] ring;	// slot for count i is ring[i & mask]
+	private final int mask;		// ring size - 1
+	private final int capacity;	// most packets held
+	private final AtomicLongArray idx; // counts of packets added/taken
+
+	private volatile Thread consumer; // consumer parked while empty
+	private volatile Thread producer; // producer parked while full
+
+	/** Initialize a new PacketQueue object.
+	 *  @param capacity is the maximum number of packets held
+	 */
+	PacketQueue(int capacity) {
+		this.capacity = capacity;
+		int n = Integer.highestOneBit(Math.max(2,capacity-1)) << 1;
+		mask = n - 1;
+		ring = new Packet[n];
+		idx = new AtomicLongArray(48);
+	}
+
+	/** Add a packet, if there is room; called by the producer.
+	 *  @param p is the packet to add
+	 *  @return true if p was added, false if the queue was full
+	 */
+	public boolean offer(Packet p) {
+		long t = idx.getPlain(TAIL);
+		if (t - idx.getPlain(HEAD_SEEN) >= capacity) {
+			idx.setPlain(HEAD_SEEN, idx.get(HEAD));
+			if (t - idx.getPlain(HEAD_SEEN) >= capacity) return false;
+		}
+		ring[(int) t & mask] = p;
+		idx.set(TAIL, t+1); // publishes p, then checks for a waiter
+		Thread c = consumer;
+		if (c != null) { consumer = null; LockSupport.unpark(c); }
+		return true;
+	}
+
+	/** Add a packet; called by the producer.
+	 *  @param p is the packet to add
+	 *  @throws IllegalStateException if the queue is full
+	 */
+	public void add(Packet p) {
+		if (!offer(p))
+			throw new IllegalStateException("PacketQueue full");
+	}
+
+	/** Add a packet, waiting for room if necessary; called by the
+	 *  producer.
+	 *  @param p is the packet to add
+	 */
+	public void put(Packet p) throws InterruptedException {
+		for (int i = 0; !offer(p); i++) {
+			if (i < SPINS) { Thread.onSpinWait(); continue; }
+			producer = Thread.currentThread();
+			if (remainingCapacity() == 0) LockSupport.park(this);
+			producer = null;
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	/** Get the packet at the head of the queue without removing it;
+	 *  called by the consumer.
+	 *  @return the packet, or null if the queue is empty
+	 */
+	public Packet peek() { return peek(0); }
+
+	/** Get a packet in the queue without removing it; called by the
+	 *  consumer.
+	 *  @param i is the position of the packet, 0 for the head
+	 *  @return the packet, or null if the queue holds no more than i
+	 *  packets
+	 */
+	public Packet peek(int i) {
+		long h = idx.getPlain(HEAD) + i;
+		if (h >= idx.getPlain(TAIL_SEEN)) {
+			idx.setPlain(TAIL_SEEN, idx.get(TAIL));
+			if (h >= idx.getPlain(TAIL_SEEN)) return null;
+		}
+		return ring[(int) h & mask];
+	}
+
+	/** Remove the packet at the head of the queue; called by the
+	 *  consumer.
+	 *  @return the packet, or null if the queue is empty
+	 */
+	public Packet poll() {
+		Packet p = peek();
+		if (p == null) return null;
+		long h = idx.getPlain(HEAD);
+		ring[(int) h & mask] = null;
+		idx.set(HEAD, h+1); // frees the slot, then checks for a waiter
+		Thread w = producer;
+		if (w != null) { producer = null; LockSupport.unpark(w); }
+		return p;
+	}
+
+	/** Remove the packet at the head of the queue, waiting up to a
+	 *  given time for one to arrive; called by the consumer.
+	 *  @param timeout is the longest time to wait
+	 *  @param unit is the unit of timeout
+	 *  @return the packet, or null if none arrived in time
+	 */
+	public Packet poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Packet p;
+		for (int i = 0; (p = poll()) == null; i++) {
+			if (i < SPINS) { Thread.onSpinWait(); continue; }
+			long left = deadline - System.nanoTime();
+			if (left <= 0) return null;
+			consumer = Thread.currentThread();
+			if (size() == 0) LockSupport.parkNanos(this, left);
+			consumer = null;
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+		return p;
+	}
+
+	/** Remove the packet at the head of the queue, waiting for one to
+	 *  arrive if necessary; called by the consumer.
+	 *  @return the packet
+	 */
+	public Packet take() throws InterruptedException {
+		Packet p;
+		for (int i = 0; (p = poll()) == null; i++) {
+			if (i < SPINS) { Thread.onSpinWait(); continue; }
+			consumer = Thread.currentThread();
+			if (size() == 0) LockSupport.park(this);
+			consumer = null;
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+		return p;
+	}
+
+	/** Remove the packets waiting in the queue, up to a limit, all at
+	 *  once; called by the consumer.
+	 *  @param c is the collection they are added to, in order
+	 *  @param max is the most packets removed
+	 *  @return the number of packets removed
+	 */
+	public int drainTo(Collection<Packet> c, int max) {
+		long h = idx.getPlain(HEAD);
+		long t = idx.getPlain(TAIL_SEEN);
+		if (t - h < max) {
+			t = idx.get(TAIL); idx.setPlain(TAIL_SEEN, t);
+		}
+		int n = (int) Math.min(max, t - h);
+		if (n <= 0) return 0;
+		for (int i = 0; i < n; i++) {
+			int j = (int) (h + i) & mask;
+			c.add(ring[j]); ring[j] = null;
+		}
+		idx.set(HEAD, h+n);
+		Thread w = producer;
+		if (w != null) { producer = null; LockSupport.unpark(w); }
+		return n;
+	}
+
+	/** Get the number of packets in the queue.
+	 *  @return the number of packets; if producer or consumer are
+	 *  active, this may be out of date by the time it is used
+	 */
+	public int size() {
+		long h = idx.get(HEAD);
+		return (int) Math.min(capacity, idx.get(TAIL) - h);
+	}
+
+	/** Test if the queue is empty.
+	 *  @return true if it holds no packets
+	 */
+	public boolean isEmpty() { return size() == 0; }
+
+	/** Get the room left in the queue.
+	 *  @return the number of packets that can be added without waiting
+	 */
+	public int remainingCapacity() { return capacity - size(); }
+}
@@ -5,82 +5,443 @@
  *
  *  An application layer thread provides new packet payloads to be
  *  sent using the provided send() method, and retrieves newly arrived
- *  payloads with the receive() method. Each application layer payload
- *  is sent as a separate UDP packet, along with a sequence number and
- *  a type flag that identifies a packet as a data packet or an
- *  acknowledgment. The sequence numbers are 15 bits.
+ *  payloads with the receive() method. Payloads may be strings or
+ *  arbitrary binary data. Each application layer payload
+ *  is sent as a separate UDP packet (or, if it is too long for one
+ *  packet, as a series of fragments that are reassembled before it is
+ *  delivered to the receiving application), or optionally bundled
+ *  with other short payloads, along with a sequence number and
+ *  a type flag that identifies a packet as a data packet, an
+ *  acknowledgment or a selective acknowledgment. The sequence numbers
+ *  are 15 bits, or 30 bits for windows of more than 16383 packets.
+ *
+ *  Payloads pass between the application and the Rdt thread through
+ *  PacketQueues, which take no locks. Any thread may call send(), but
+ *  incoming payloads must all be received by a single thread.
+ *
+ *  Optionally, the two ends open a connection with SYN packets before
+ *  any data is sent, and close it with FIN packets once all data has
+ *  been delivered, so that neither has to wait for its peer or for an
+ *  idle timeout.
  */
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 public class Rdt implements Runnable {
+	public static final int GO_BACK_N = 0;	// protocol modes
+	public static final int SEL_REPEAT = 1;
+
 	private int wSize;	// protocol window size
-	private long timeout;	// retransmission timeout in ns
+	private int seqSpace;	// number of sequence numbers
+	private boolean wide;	// sequence numbers need more than 15 bits
+	private int mask;	// number of slots in the buffers - 1
+	private int mode;	// GO_BACK_N or SEL_REPEAT
+	private long timeout;	// initial and minimum retransmission timeout in ns
+	private long rto;	// current retransmission timeout in ns
+	private long srtt = 0;	// smoothed round-trip time in ns (0 if no sample yet)
+	private long rttvar = 0; // round-trip time variation in ns
+
+	private static final long MAX_TIMEOUT = 60000000000L; // upper bound on rto
+	private static final int MAX_NARROW = (1 << 14) - 1; // largest window
+						// with 15 bit sequence numbers
+	private static final int MAX_WINDOW = 1 << 24; // largest window
+	private static final int WIDE_SPACE = 1 << 30; // sequence numbers for
+						// windows above MAX_NARROW
+	private static final int INIT_SLOTS = 1024; // initial buffer size for
+						// windows above MAX_NARROW
 	private Substrate sub;	// Substrate object for packet IO
+	private PacketPool pool; // pool shared with sub
 
-	private ArrayBlockingQueue<String> fromSrc;
-	private ArrayBlockingQueue<String> toSnk;
+	private PacketQueue fromSrc;
+	private PacketQueue toSnk;
 
 	// Sending structures and necessary information
 	private Packet[] sendBuf; // not yet acked packets
-	private short sendBase = 0;	// seq# of first packet in send window
-	private short sendSeqNum = 0;	// next seq# after send window
-	private short dupAcks = 0; // should only happen for sendBase-1 packet
+	private long[] sendTime; // time each packet in sendBuf was first sent
+	private boolean[] resent; // true if packet in sendBuf was retransmitted
+	private int sendBase = 0;	// seq# of first packet in send window
+	private int sendSeqNum = 0;	// next seq# after send window
+	private int sendNext = 0;	// next seq# to send; behind sendSeqNum
+					// while resending after a loss
+	private int dupAcks = 0; // should only happen for sendBase-1 packet
+
+	// Congestion control
+	private boolean cc = false; // limit the send window to cwnd
+	private double cwnd;	// congestion window in packets
+	private double ssthresh; // slow start threshold in packets
+	private int recovering = 0; // packets to be acked before the window
+				    // may be reduced again
+	private static final int INIT_CWND = 4; // initial congestion window
+
+	// Pacing
+	private boolean pacing = false; // have the substrate pace packets
+
+	// Message aggregation
+	private boolean aggregate = false; // bundle short messages together
+	private long aggDelay = 0; // longest time a message waits for others
+	private long aggDue = -1; // time when waiting messages must be sent,
+				  // or -1 if not yet set
+	private boolean inMsg = false; // last packet taken from fromSrc was
+				       // a fragment with more to follow
+
+	// Connection management
+	private boolean connect = false; // open and close with SYN and FIN
+	private boolean established = false; // have heard from the peer
+	private boolean synAcked = false; // peer has heard from us
+	private long synWait;	// time before the SYN is resent, in ns
+	private long synAgain = 0; // time when the SYN is resent
+	private volatile boolean closing = false; // no more messages to send
+	private boolean finSent = false; // FIN follows our last message
+	private volatile boolean peerClosed = false; // peer's FIN delivered
+	private long lastHeard = 0; // time the last packet arrived
+	private int backoffs = 0; // timer expiries without progress
+	private volatile boolean gaveUp = false; // closed, and the peer
+						// seems to have gone away
+	private static final long MAX_SYN_WAIT = 1000000000L; // upper bound
+						// on synWait
+	private static final int MAX_BACKOFFS = 6; // expiries before a
+						// stopping Rdt gives up
+
+	// Flow control
+	private boolean flowControl = false; // advertise our receive window
+	private int peerWnd;	// receive window last advertised by peer
+	private volatile int lastRwnd; // receive window we last advertised
 
 	// Receiving structures and necessary information
 	private Packet[] recvBuf; // undelivered packets
-	private short recvBase = 0;  // seq# of oldest undelivered packet (to application)
-	private short expSeqNum = 0;	// seq# of packet we expect to receive (from substrate)
-	private short lastRcvd = -1; // last packet received properly
+	private int recvBase = 0;  // seq# of oldest undelivered packet (to application)
+	private int expSeqNum = 0;	// seq# of packet we expect to receive (from substrate)
+	private int lastRcvd = -1; // last packet received properly
+	private volatile int recvHeld = 0; // number of packets in recvBuf
+	private Packet partHead = null; // fragments of a partially
+	private Packet partTail = null; // delivered message
+
+	// Acknowledgment policy
+	private int ackEvery = 1; // ack at least every ackEvery in-order packets
+	private long ackDelay = 0; // longest time an ack is held back, in ns
+	private boolean piggyback = false; // carry held acks on outgoing data
+	private int acksOwed = 0; // in-order packets not yet acked
+	private long ackDue = 0; // time when the held ack must be sent
+
+	// Statistics
+	private Metrics metrics;
+	private LongAdder dataSent, retransmits, fastRetransmits, timeouts;
+	private LongAdder acksSent, acksRcvd, dupAckCount, dataRcvd;
+	private LongAdder dataDropped, msgsDelivered, bytesDelivered;
+	private Metrics.Histogram rttHist; // round-trip samples in us
 
 	// Time keeping variabels
 	private long now = 0;		// current time (relative to t0)
 	private long sendAgain = 0;	// time when we send all unacked packets
 
 	private Thread myThread;
-	private boolean quit;
+	private ThreadFactory threads;	// creates myThread; null for the default
+	private volatile boolean quit;
+	private volatile boolean aborted; // quit without waiting for acks
 	private boolean timerOn = false;
+	private boolean eventDriven = false; // park instead of polling when idle
+	private boolean sack = false; // send selective acks (SEL_REPEAT only)
+	private int numUnacked = 0; // number of packets in sendBuf
+
+	private static final long MAX_PARK = 100000000L; // longest idle park in ns
 
 	/** Initialize a new Rdt object.
 	 *  @param wSize is the window size used by protocol; the sequence #
 	 *  space is twice the window size
-	 *  @param timeout is the time to wait before retransmitting
+	 *  @param timeout is the initial (and minimum) time to wait before
+	 *  retransmitting
 	 *  @param sub is a reference to the Substrate object that this object
 	 *  uses to handle the socket IO
 	 */
 	Rdt(int wSize, double timeout, Substrate sub) 
 	{
-		this.wSize = Math.min(wSize,(1 << 14) - 1);
+		this(wSize,timeout,sub,GO_BACK_N);
+	}
+
+	/** Initialize a new Rdt object using a specific protocol.
+	 *  @param wSize is the window size used by protocol; the sequence #
+	 *  space is twice the window size, unless the window is too large
+	 *  for 15 bit sequence numbers; then 30 bit sequence numbers are
+	 *  used, sent in wide packets, and the send and receive buffers
+	 *  are rings that start small and grow as the window fills
+	 *  @param timeout is the initial time to wait before retransmitting;
+	 *  the timeout adapts to the measured round-trip time, but never
+	 *  drops below this value
+	 *  @param sub is a reference to the Substrate object that this object
+	 *  uses to handle the socket IO
+	 *  @param mode is GO_BACK_N or SEL_REPEAT; in selective-repeat mode
+	 *  the receiver buffers out-of-order packets and acknowledges each
+	 *  packet individually, and the sender retransmits only the packets
+	 *  that have not been acked
+	 */
+	Rdt(int wSize, double timeout, Substrate sub, int mode) 
+	{
+		this.wSize = Math.max(1, Math.min(wSize, MAX_WINDOW));
+		wide = (this.wSize > MAX_NARROW);
+		seqSpace = (wide ? WIDE_SPACE : 2*this.wSize);
 		this.timeout = ((long) (timeout * 1000000000)); // sec to ns
+		this.rto = this.timeout;
 		this.sub = sub;
+		this.mode = mode;
 
 		// create queues for application layer interface
-		fromSrc = new ArrayBlockingQueue<String>(1000,true);
-		toSnk = new ArrayBlockingQueue<String>(1000,true);
+		fromSrc = new PacketQueue(1000);
+		toSnk = new PacketQueue(1000);
+		pool = sub.pool();
 		quit = false;
 
-		sendBuf = new Packet[2*wSize];
-		recvBuf = new Packet[2*wSize];
+		// one slot per sequence number, or a ring indexed by the
+		// low bits of the sequence number
+		int slots = seqSpace;
+		if (wide) {
+			slots = Integer.highestOneBit(this.wSize - 1) << 1;
+			slots = Math.min(slots, INIT_SLOTS);
+		}
+		mask = slots - 1;
+		sendBuf = new Packet[slots];
+		sendTime = new long[slots];
+		resent = new boolean[slots];
+		recvBuf = new Packet[slots];
+		peerWnd = lastRwnd = this.wSize;
+
+		metrics = new Metrics("Rdt");
+		dataSent = metrics.counter("dataSent");
+		retransmits = metrics.counter("retransmits");
+		fastRetransmits = metrics.counter("fastRetransmits");
+		timeouts = metrics.counter("timeouts");
+		acksSent = metrics.counter("acksSent");
+		acksRcvd = metrics.counter("acksReceived");
+		dupAckCount = metrics.counter("dupAcks");
+		dataRcvd = metrics.counter("dataReceived");
+		dataDropped = metrics.counter("dataDropped");
+		msgsDelivered = metrics.counter("messagesDelivered");
+		bytesDelivered = metrics.counter("bytesDelivered");
+		metrics.gauge("fromSrc", () -> fromSrc.size());
+		metrics.gauge("toSnk", () -> toSnk.size());
+		metrics.gauge("unacked", () -> numUnacked);
+		metrics.gauge("recvHeld", () -> recvHeld);
+		metrics.gauge("window", () -> window());
+		metrics.gauge("peerWnd", () -> peerWnd);
+		metrics.gauge("srttMicros", () -> srtt/1000);
+		metrics.gauge("rtoMicros", () -> rto/1000);
+		rttHist = metrics.histogram("rttMicros");
+	}
+
+	/** Select event-driven operation; must be called before start().
+	 *  When enabled, the Rdt thread parks when it has nothing to do,
+	 *  and is woken up by send(), by the arrival of a packet from the
+	 *  substrate or by the expiry of the retransmission timer, instead
+	 *  of polling every millisecond.
+	 *  @param eventDriven is true to enable event-driven operation
+	 */
+	public void setEventDriven(boolean eventDriven) {
+		this.eventDriven = eventDriven;
+		sub.setListener(eventDriven ? this::wakeup : null);
+	}
+
+	/** Select selective acknowledgments; must be called before start().
+	 *  Only used in selective-repeat mode. When enabled, the receiver
+	 *  answers each data packet with a SACK that reports the last packet
+	 *  received in order and a bitmap of the packets it holds beyond
+	 *  it, so a single ack that gets through makes up for many lost
+	 *  ones. The sender retransmits a packet as soon as three later
+	 *  packets are reported, without waiting for the timer.
+	 *  SACKs are understood by senders that do not use them.
+	 *  @param sack is true to send selective acks
+	 */
+	public void setSack(boolean sack) { this.sack = sack; }
+
+	/** Select the acknowledgment policy; must be called before start().
+	 *  By default every data packet is acked as soon as it arrives.
+	 *  Otherwise, the ack for a packet that arrives in order is held
+	 *  back until ackEvery such packets have arrived or delay seconds
+	 *  have passed, whichever comes first, and then a single cumulative
+	 *  ack covers them all. A packet that arrives out of order is acked
+	 *  at once, so that the sender learns about losses quickly. In
+	 *  selective-repeat mode, acks are only held back when SACKs are
+	 *  used, since individual acks cannot be combined.
+	 *  @param ackEvery is the number of in-order packets per ack
+	 *  @param delay is the longest time an ack is held back, in seconds
+	 *  @param piggyback is true to carry a held ack on the next data
+	 *  packet sent, instead of sending a separate ack; should be the
+	 *  same at both ends
+	 */
+	public void setAckPolicy(int ackEvery, double delay, boolean piggyback) {
+		this.ackEvery = Math.max(1, ackEvery);
+		this.ackDelay = (long) (delay * 1000000000); // sec to ns
+		this.piggyback = piggyback;
+	}
+
+	/** Select congestion control; must be called before start().
+	 *  When enabled, the number of packets in flight is limited by a
+	 *  congestion window as well as by wSize. The window starts small
+	 *  and doubles every round trip (slow start) until it reaches the
+	 *  slow start threshold, then grows by one packet per round trip.
+	 *  A loss detected by duplicate or selective acks halves it, and
+	 *  a timeout drops it to one packet; in both cases the threshold
+	 *  becomes half the number of packets in flight. After a loss, the
+	 *  packets to be resent are sent as the window allows, instead of
+	 *  all at once.
+	 *  @param cc is true to enable congestion control
+	 */
+	public void setCongestionControl(boolean cc) {
+		this.cc = cc;
+		cwnd = Math.min(INIT_CWND, wSize); ssthresh = wSize;
+	}
+
+	/** Select flow control; must be called before start().
+	 *  When enabled, every ack carries the number of packets that can
+	 *  still be accepted: the free space in the queue of messages that
+	 *  the application has not yet received, less the packets waiting
+	 *  to join it, but at most wSize. If it drops to zero, the peer stops
+	 *  sending new data, except for a single probe packet while it has
+	 *  nothing else in flight, which it resends with the usual backoff
+	 *  until the window opens. Once the application has taken enough
+	 *  messages to open the window by half of wSize, a window update is
+	 *  sent without waiting for a probe. The advertised window is always
+	 *  respected, whether or not this is enabled.
+	 *  @param flowControl is true to advertise the receive window
+	 */
+	public void setFlowControl(boolean flowControl) {
+		this.flowControl = flowControl;
+	}
+
+	/** Select pacing; must be called before start().
+	 *  When enabled, the substrate is asked to spread the packets of
+	 *  each window over a round trip, instead of sending them in a
+	 *  burst, by setting its pacing rate to the window divided by the
+	 *  smoothed RTT. The rate is twice that in slow start and 1.2
+	 *  times that otherwise, so that pacing does not hold back the
+	 *  growth of the window. It is updated whenever the window or the
+	 *  RTT changes.
+	 *  @param pacing is true to pace packets
+	 */
+	public void setPacing(boolean pacing) { this.pacing = pacing; }
+
+	/** Select message aggregation; must be called before start().
+	 *  When enabled, short messages waiting to be sent are bundled
+	 *  into a single packet, each preceded by its length, as long as
+	 *  they fit. A message is held back for up to delay seconds while
+	 *  the packet fills up; with a delay of zero, only messages that
+	 *  are already waiting are bundled. The receiver splits the bundle
+	 *  and delivers its messages in order, so aggregation only needs
+	 *  to be enabled at the sending end.
+	 *  @param aggregate is true to bundle messages
+	 *  @param delay is the longest time a message is held back,
+	 *  in seconds
+	 */
+	public void setAggregation(boolean aggregate, double delay) {
+		this.aggregate = aggregate;
+		this.aggDelay = (long) (delay * 1000000000); // sec to ns
+	}
+
+	/** Select connection management; must be called before start().
+	 *  When enabled, both ends send a SYN when they start, and resend
+	 *  it until they hear from the peer; each answers a SYN with a
+	 *  SYN_ACK. No data is sent, and none is accepted, until the peer
+	 *  has been heard from, so either end may start first and neither
+	 *  needs to wait for the other. Once the application calls close()
+	 *  or stop(), a FIN is sent after the last message; it takes the
+	 *  next sequence number, so it is acked, and resent if lost, like
+	 *  a data packet, and it reaches the peer only after all the data
+	 *  before it. The peer's application sees finished() once it has
+	 *  received everything. A stopping Rdt quits once its own FIN has
+	 *  been acked and the peer's has arrived. Should be the same at
+	 *  both ends.
+	 *  @param connect is true to open and close connections
+	 */
+	public void setConnection(boolean connect) { this.connect = connect; }
+
+	/** Set the factory for the thread that runs this Rdt.
+	 *  Must be called before start().
+	 *  @param threads is the factory, or null for Threads.factory()
+	 */
+	public void setThreadFactory(ThreadFactory threads) {
+		this.threads = threads;
 	}
 
 	/** Start the Rdt running. */
 	public void start() throws Exception {
-		myThread = new Thread(this); myThread.start();
+		metrics.register();
+		myThread = Threads.newThread(threads,this); myThread.start();
+	}
+
+	/** Stop the Rdt.
+	 *  Waits until every packet sent has been acked and, with
+	 *  connection management, the connection has been closed at both
+	 *  ends. Gives up if the peer stops answering: after two timeouts
+	 *  in a row once the peer has closed and only our FIN is left
+	 *  unacked (the peer may have gone once it got our ack of its FIN),
+	 *  or once nothing has been heard from the peer for as long as
+	 *  MAX_BACKOFFS timeouts in a row would take, and either that many
+	 *  have passed or our FIN has been acked but the peer's has not
+	 *  come. With connection management, a FIN is sent as if close()
+	 *  had been called, but unlike close(), stop() does not reject
+	 *  messages sent afterwards.
+	 */
+	public void stop() throws Exception {
+		quit = true; wakeup(); myThread.join();
 	}
 
-	/** Stop the Rdt.  */
-	public void stop() throws Exception { quit = true; myThread.join(); }
+	/** Close the sending side of the connection.
+	 *  No messages may be sent afterwards. With connection management,
+	 *  a FIN follows the messages already sent; otherwise nothing is
+	 *  sent. Returns at once; stop() waits for the connection to close.
+	 */
+	public void close() { closing = true; wakeup(); }
+
+	/** Test if the peer has finished sending.
+	 *  @return true if the peer has closed the connection and every
+	 *  message it sent has been received by the application; never
+	 *  true without connection management
+	 */
+	public boolean finished() { return peerClosed && toSnk.isEmpty(); }
+
+	/** Test if the connection has failed.
+	 *  @return true if we have closed or stopped the connection and
+	 *  the peer seems to have gone away (see stop()) before the close
+	 *  was complete, so messages sent either way may have been lost
+	 */
+	public boolean failed() { return gaveUp; }
+
+	/** Abort the Rdt.
+	 *  Like stop(), but the Rdt thread quits without waiting for
+	 *  unacknowledged packets, and the caller does not wait for it.
+	 *  Used when the peer has gone away.
+	 */
+	public void abort() { aborted = true; quit = true; wakeup(); }
+
+	/** Get the statistics of this Rdt.
+	 *  Counters cover data and acks sent and received, retransmissions
+	 *  and their causes, and messages and bytes delivered, from which
+	 *  goodput follows; gauges give the depths of fromSrc and toSnk,
+	 *  window occupancy and the RTT estimate; and a histogram holds
+	 *  the RTT samples. They are registered with JMX while the Rdt
+	 *  runs.
+	 *  @return the statistics
+	 */
+	public Metrics metrics() { return metrics; }
+
+	/** Wake up the Rdt thread if it is parked waiting for an event. */
+	private void wakeup() {
+		Thread t = myThread;
+		if (t != null) LockSupport.unpark(t);
+	}
 
 	/** Increment sequence number, handling wrap-around.
 	 *  @param x is a sequence number
 	 *  @return next sequence number after x
 	 */
-	private short incr(short x) {
+	int incr(int x) {
 		x++; 
-		return (x < 2*wSize ? x : 0);
+		return (x < seqSpace ? x : 0);
 	}
 
 	/** Compute the difference between two sequence numbers,
@@ -89,8 +450,142 @@ public class Rdt implements Runnable {
 	 *  @param y is another sequence number
 	 *  @return difference, assuming x is "clockwise" from y
 	 */
-	private int diff(short x, short y) {
-		return (x >= y ? x-y : (x + 2*wSize) - y);
+	int diff(int x, int y) {
+		return (x >= y ? x-y : (x - y) + seqSpace);
+	}
+
+	/** Find the buffer slot of a sequence number.
+	 *  @param x is a sequence number
+	 *  @return the index of x in sendBuf, sendTime, resent and recvBuf
+	 */
+	private int slot(int x) { return (wide ? x & mask : x); }
+
+	/** Make sure the buffers can hold a packet.
+	 *  The buffers of a wide window start small, and double in size
+	 *  whenever a packet would not fit, until they hold a full window;
+	 *  others always hold one.
+	 *  @param n is the distance of the packet's sequence number from
+	 *  the base of its window (sendBase or recvBase), less than wSize
+	 */
+	private void fit(int n) {
+		while (n > mask) {
+			int m = 2*mask + 1;
+			Packet[] sb = new Packet[m+1];
+			long[] st = new long[m+1];
+			boolean[] rs = new boolean[m+1];
+			Packet[] rb = new Packet[m+1];
+			int x = sendBase, y = recvBase;
+			for (int i = 0; i <= mask; i++) {
+				sb[x & m] = sendBuf[x & mask];
+				st[x & m] = sendTime[x & mask];
+				rs[x & m] = resent[x & mask];
+				rb[y & m] = recvBuf[y & mask];
+				x = incr(x); y = incr(y);
+			}
+			sendBuf = sb; sendTime = st; resent = rs; recvBuf = rb;
+			mask = m;
+		}
+	}
+
+	/** Get the current send window.
+	 *  @return the largest number of packets that may be in flight
+	 */
+	private int window() {
+		return (cc ? Math.min(wSize, (int) cwnd) : wSize);
+	}
+
+	/** Get the limit on packets in flight for sending new data.
+	 *  @return the send window, further limited by the window the peer
+	 *  advertised; at least one packet if none is in flight, so that a
+	 *  zero window is probed
+	 */
+	private int sendLimit() {
+		return Math.max(Math.min(window(), peerWnd), numUnacked == 0 ? 1 : 0);
+	}
+
+	/** Compute our receive window.
+	 *  @return the number of packets we can accept
+	 */
+	private int rwnd() {
+		return Math.max(0, Math.min(wSize,
+				toSnk.remainingCapacity() - recvHeld));
+	}
+
+	/** Add our receive window to an outgoing ack, if flow control
+	 *  is enabled.
+	 *  @param p is an ack, or a data packet with a piggybacked ack
+	 */
+	private void advertise(Packet p) {
+		if (!flowControl) return;
+		lastRwnd = rwnd();
+		p.rwnd = lastRwnd;
+	}
+
+	/** Open the congestion window for a newly acked packet.
+	 *  It grows by a packet in slow start, and by 1/cwnd packets
+	 *  otherwise, so by one packet per window acked.
+	 */
+	private void opened() {
+		if (recovering > 0) recovering--;
+		if (!cc) return;
+		cwnd += (cwnd < ssthresh ? 1 : 1/cwnd);
+		cwnd = Math.min(cwnd, wSize);
+		pace();
+	}
+
+	/** Close the congestion window after a loss.
+	 *  The window is only reduced once for losses among the packets
+	 *  in flight when it was last reduced, unless the timer expires.
+	 *  @param timeout is true if the loss was detected by the timer
+	 */
+	private void congestion(boolean timeout) {
+		if (!cc || (!timeout && recovering > 0)) return;
+		ssthresh = Math.max(diff(sendNext, sendBase)/2.0, 2);
+		cwnd = (timeout ? 1 : ssthresh);
+		recovering = numUnacked;
+		pace();
+	}
+
+	/** Update the substrate's pacing rate, if pacing is enabled.
+	 *  Nothing is paced until there is an RTT sample.
+	 */
+	private void pace() {
+		if (!pacing || srtt == 0) return;
+		double gain = (cc && cwnd < ssthresh ? 2 : 1.2);
+		sub.setPacingRate(gain * window() * Packet.MAXLEN * 1e9 / srtt);
+	}
+
+	/** Update the retransmission timeout with a new round-trip sample.
+	 *  Maintains a smoothed RTT and RTT variation as in RFC 6298 and
+	 *  sets the timeout to srtt + 4*rttvar, bounded below by the timeout
+	 *  given to the constructor. Samples must only be taken from packets
+	 *  that were never retransmitted (Karn's rule).
+	 *  @param rtt is the measured round-trip time in ns
+	 */
+	private void rttSample(long rtt) {
+		rttHist.record(rtt/1000);
+		if (srtt == 0) {
+			srtt = rtt; rttvar = rtt/2;
+		} else {
+			rttvar = (3*rttvar + Math.abs(srtt - rtt))/4;
+			srtt = (7*srtt + rtt)/8;
+		}
+		rto = baseRto();
+		pace();
+	}
+
+	/** Compute the retransmission timeout without any backoff.
+	 *  The timeout is doubled on each expiry of the timer, and goes
+	 *  back to this value when an ack for new data arrives, even if
+	 *  that ack provides no round-trip sample; otherwise a lossy path,
+	 *  on which nearly every packet gets resent, would keep the timeout
+	 *  backed off indefinitely.
+	 *  @return srtt + 4*rttvar, bounded below by the timeout given to
+	 *  the constructor, or that timeout if there is no sample yet
+	 */
+	private long baseRto() {
+		if (srtt == 0) return timeout;
+		return Math.max(timeout, Math.min(MAX_TIMEOUT, srtt + 4*rttvar));
 	}
 
 	/** Main thread for the Rdt object.
@@ -107,118 +602,282 @@ public class Rdt implements Runnable {
 	public void run() {
 		long t0 = System.nanoTime();
 		long now = 0;		// current time (relative to t0)
-		int numUnacked = 0;
-		sendAgain = timeout;
-
-		while (!quit || numUnacked != 0) {	
-			//If the timer is running, update the protocol's working 
-			//understanding of "now" (i.e. run the timer), and update 
-			//the duration of the timer (sendAgain) if "now" is being updated 
-			//for the first time		
-			if(timerOn){
-				if (now == 0) {
-					now = System.nanoTime() - t0;
-					sendAgain = now + timeout;
-				}
-				else {
-					now = System.nanoTime() - t0;
-				}
-			}
-			Packet p = new Packet();
+		sendAgain = rto;
+		synWait = rto;
+		if (connect) syn(now);
+
+		while (!quit || !(aborted || drained(now))) {
+			//update the protocol's working understanding of "now";
+			//the timer (sendAgain) is only checked while timerOn
+			now = System.nanoTime() - t0;
+			Packet p;
+			if ((closing || quit) && connect && !gaveUp)
+				gaveUp = gone(now);
 
 			// if receive buffer has a packet that can be
-			//    delivered, deliver it to sink
-			if (recvBuf[recvBase] !=  null) {
-				p = recvBuf[recvBase];
-				toSnk.add(p.payload);
-				recvBuf[recvBase] = null;
+			//    delivered and the sink has room, deliver it to sink
+			if (recvBuf[slot(recvBase)] !=  null &&
+			    toSnk.remainingCapacity() >=
+			    messages(recvBuf[slot(recvBase)])) {
+				p = recvBuf[slot(recvBase)];
+				recvBuf[slot(recvBase)] = null;
+				--recvHeld;
 				recvBase = incr(recvBase);
+				//a FIN follows the peer's last message
+				if (p.type == Packet.FIN) {
+					peerClosed = true;
+					p.release();
+				}
+				//split a bundle into its messages
+				else if (p.bundle) {
+					unbundle(p);
+				}
+				//or chain the fragments of a message, and
+				//deliver it when the last one is added
+				else {
+					if (partHead == null) partHead = p;
+					else partTail.next = p;
+					partTail = p;
+					if (!p.more) {
+						msgsDelivered.increment();
+						bytesDelivered.add(length(partHead));
+						toSnk.add(partHead);
+						partHead = partTail = null;
+					}
+				}
 			}
 			//immediately resend packets before trying to process anything else
 			else if (dupAcks == 3) {
+				fastRetransmits.increment();
+				congestion(false);
 				resend(now);
 			}
 
+			// else if an ack has been held back long enough, send it
+			else if (acksOwed > 0 && now >= ackDue) {
+				sub.send(owedAck());
+			}
+
+			// else if the application has made room after we
+			// advertised a small window, send a window update
+			else if (flowControl && lastRwnd < wSize &&
+				 rwnd() >= lastRwnd + Math.max(1, wSize/2)) {
+				sub.send(owedAck());
+			}
+
 			// else if the substrate has an incoming packet
 			// 	  get the packet from the substrate and process it		
 			else if (sub.incoming()) {
 				p = sub.receive();			
+				lastHeard = now;
+				//SYNs, and anything that comes before them
+				if (connect && control(p)) continue;
+				if (p.isData()) dataRcvd.increment();
+				else acksRcvd.increment();
+				int newWnd = (p.rwnd >= 0 ? p.rwnd : peerWnd);
+
+				//process a piggybacked ack first, then handle
+				//the packet like any other data packet
+				if (p.type == Packet.DATA_ACK) {
+					cumAck(p.ackNum, now);
+					p.type = Packet.DATA;
+				}
 
-				//if it's a data packet
-				if (p.type == 0) {
-					//if expected packet, add to recv buffer and update info
-					if (p.seqNum == expSeqNum) {
-						recvBuf[recvBase] = p;
+				//if it's a data packet (or a FIN, which takes
+				//a sequence number like one), in selective-repeat mode
+				if (sequenced(p) && mode == SEL_REPEAT) {
+					//buffer it if it falls in the receive window and
+					//we don't have it yet; anything else is a duplicate
+					//of a delivered packet whose ack was lost
+					int seqNum = p.seqNum;
+					boolean inOrder = false;
+					if (diff(seqNum, recvBase) < wSize)
+						fit(diff(seqNum, recvBase));
+					if (diff(seqNum, recvBase) < wSize &&
+					    recvBuf[slot(seqNum)] == null) {
+						recvBuf[slot(seqNum)] = p;
+						++recvHeld;
+						//in order if it leaves no holes
+						inOrder = (recvHeld ==
+						   diff(nextExpected(), recvBase));
+					} else {
+						dataDropped.increment();
+						p.release();
+					}
+
+					//ack every data packet, individually or
+					//with a selective ack of the whole window;
+					//a selective ack may be held back. A packet
+					//outside the window is an old duplicate if
+					//the sink is keeping up, but may be beyond
+					//the window if it is not, so is not acked
+					if (sack && inOrder) owe(now);
+					else if (sack) sub.send(owedAck());
+					else if (diff(seqNum, recvBase) < wSize ||
+						 recvBuf[slot(recvBase)] == null)
+						sub.send(ack(seqNum));
+				}
+
+				//if it's a data packet, in go-back-N mode
+				else if (sequenced(p)) {
+					//if expected packet and there is room for it,
+					//add to recv buffer and update info
+					if (p.seqNum == expSeqNum &&
+					    diff(expSeqNum, recvBase) < wSize) {
+						fit(diff(expSeqNum, recvBase));
+						recvBuf[slot(p.seqNum)] = p;
+						++recvHeld;
 						expSeqNum = incr(expSeqNum);
 						lastRcvd = p.seqNum;
+						owe(now);
+					} else {
+						dataDropped.increment();
+						p.release();
+						//send ack back to sub only if rcvd >=0
+						if (lastRcvd >= 0) sub.send(owedAck());
 					}
+				}
 
-					//send ack back to sub only if rcvd >=0
-					if(lastRcvd >= 0) {
-						Packet ack = new Packet();
-						ack.type = 1;
-						ack.seqNum = lastRcvd;
-						sub.send(ack);
-					}
+
+				//if selective-repeat ack, mark that packet as acked
+				//and slide the window past any acked packets
+				else if (mode == SEL_REPEAT && p.type != Packet.SACK) {
+					int oldBase = sendBase;
+					if (markAcked(p.seqNum))
+						rttSample(now - sendTime[slot(p.seqNum)]);
+					slide(now, oldBase);
+					p.release(); // done with ack
 				}
 
+				//if selective ack, mark everything it reports and
+				//retransmit the holes it reveals
+				else if (mode == SEL_REPEAT) {
+					int oldBase = sendBase;
+					processSack(p, now);
+					slide(now, oldBase);
+					p.release(); // done with ack
+				}
 
-				//if ack
+				//if go-back-N ack (a SACK is just a cumulative ack here)
 				else {
-					//if not timeout
-					if (now <= sendAgain) {
-						//if seq num == sendBase-1 (with handled wrap around)
-						if (p.seqNum == diff(sendBase, (short)1)) {
+					//if seq num == sendBase-1 (with handled wrap around);
+					//a window update is not a duplicate
+					if (p.seqNum == diff(sendBase, 1)) {
+						if (newWnd == peerWnd) {
 							dupAcks++;
-						}
-
-						//if ack seq num within window
-						else if (diff(p.seqNum, sendBase) < wSize) {
-							int numUpdates = (diff(p.seqNum,sendBase)) + 1;
-							int lastSent = diff(sendSeqNum, (short)1);
-							if ((int) p.seqNum == lastSent) {
-								timerOn = false;
-							}
-
-							//process all packets from sendBase to ack received
-							//in window.
-							for (int x = 0; x < numUpdates; ++x) {
-								sendBuf[sendBase] = null;
-								sendBase = incr(sendBase);		
-								dupAcks = 0;
-								--numUnacked;
-							}
+							dupAckCount.increment();
 						}
 					}
+
+					//otherwise, ack all packets up to seq num
+					else cumAck(p.seqNum, now);
+					p.release(); // done with ack
 				}	
+				peerWnd = newWnd;
 			}
-			// else if the resend timer has expired,
-			// re-send all un-acked packets and reset their timers
-			else if (now > sendAgain) { 
+			// else if the resend timer has expired, back off the
+			// timeout, re-send all un-acked packets and reset their timers
+			else if (timerOn && now > sendAgain) { 
+				timeouts.increment();
+				backoffs++;
+				rto = Math.min(2*rto, MAX_TIMEOUT);
+				//a lost probe of a zero window is no sign of congestion
+				if (peerWnd > 0) congestion(true);
 				resend(now);	
 			}
 
+			// else if the peer has not answered our SYN, send it
+			// again, backing off up to MAX_SYN_WAIT
+			else if (connect && !synAcked && now > synAgain) {
+				timeouts.increment();
+				backoffs++;
+				synWait = Math.min(2*synWait, MAX_SYN_WAIT);
+				syn(now);
+			}
+
+			// else if packets are waiting to be resent after a loss
+			//      and the send window is not full
+			//		and the substrate can accept a packet
+			else if (sendNext != sendSeqNum &&
+				(diff(sendNext,sendBase) < window()) && sub.ready()) {
+				if (sendBuf[slot(sendNext)] != null) { // skip acked ones
+					refresh(sendBuf[slot(sendNext)]);
+					sub.send(sendBuf[slot(sendNext)].retain());
+					retransmits.increment();
+					resent[slot(sendNext)] = true;
+				}
+				sendNext = incr(sendNext);
+			}
+
 			// else if there is a message from the source waiting to be sent 
 			//      and the send window is not full
 			//		and the substrate can accept a packet
-			else if ((fromSrc.size() !=0) && 
-				(diff(sendSeqNum,sendBase) < wSize) && sub.ready()) {
+			else if ((fromSrc.size() !=0) && (established || !connect) &&
+				(diff(sendSeqNum,sendBase) < sendLimit()) && sub.ready()
+				&& bundleDue(now)) {
 
-				//create a packet containing the message and send it
-				Packet data = new Packet();
-				data.type = 0;
+				//label the packet containing the message and send it,
+				//keeping a reference in case it needs to be resent
+				Packet data = fromSrc.poll();
+				boolean cont = inMsg; // data continues a long message
+				inMsg = data.more;
+				if (aggregate) {
+					if (!cont) data = bundle(data);
+					aggDue = -1;
+				}
+				data.type = Packet.DATA;
 				data.seqNum = sendSeqNum;
-				data.payload = fromSrc.poll();
-				sub.send(data);
+				data.wide = wide;
+
+				//carry a held ack along, if there is room for it
+				if (piggyback && acksOwed > 0) {
+					data.type = Packet.DATA_ACK;
+					data.ackNum = lastInOrder();
+					advertise(data);
+					if (data.hdrLen() + data.length() <= Packet.MAXLEN) {
+						acksOwed = 0;
+					} else {
+						data.type = Packet.DATA; data.rwnd = -1;
+					}
+				}
+				transmit(data, now);
+				dataSent.increment();
+			}
 
-				//update send buffer and related data
-				++numUnacked;
-				sendBuf[data.seqNum] = data;	
-				sendSeqNum = incr(sendSeqNum);
-				sendAgain = now + timeout; //reset timer
+			// else if the application has closed the connection
+			//	or is stopping, and all its messages have been
+			//	sent, follow them with a FIN, sent like a data packet
+			else if (connect && (closing || quit) && established &&
+				!finSent && fromSrc.size() == 0 &&
+				diff(sendSeqNum,sendBase) < sendLimit() && sub.ready()) {
+				Packet fin = pool.alloc();
+				fin.type = Packet.FIN;
+				fin.seqNum = sendSeqNum;
+				fin.wide = wide;
+				transmit(fin, now);
+				finSent = true;
+			}
 
-				//start timer
-				timerOn = true;
+			// else nothing to do; in event-driven mode, park until
+			// something happens or the timer expires
+			else if (eventDriven) {
+				long wait = MAX_PARK;
+				if (timerOn) wait = Math.min(wait, sendAgain - now);
+				if (acksOwed > 0) wait = Math.min(wait, ackDue - now);
+				if (aggDue >= 0) wait = Math.min(wait, aggDue - now);
+				if (connect && !synAcked)
+					wait = Math.min(wait, synAgain - now);
+				if (((fromSrc.size() != 0 || (connect &&
+				      (closing || quit) && !finSent)) &&
+				     (established || !connect) &&
+				     diff(sendSeqNum,sendBase) < sendLimit()) ||
+				    (sendNext != sendSeqNum &&
+				     diff(sendNext,sendBase) < window())) {
+					// substrate is not ready; it does not signal
+					// when it drains, so check back shortly
+					wait = Math.min(wait, 1000000L);
+				}
+				if (wait > 0) LockSupport.parkNanos(this, wait);
 			}
 
 			// else nothing to do, so sleep for 1 ms
@@ -231,17 +890,495 @@ public class Rdt implements Runnable {
 				}
 			}
 		}
+		//don't leave the peer waiting for a held ack
+		if (acksOwed > 0) sub.send(owedAck());
+		metrics.unregister();
+	}
+
+	/** Put a new packet in the send window and send it.
+	 *  @param p is a data packet or FIN, numbered sendSeqNum; a
+	 *  reference is kept in case it needs to be resent
+	 *  @param now is the current time
+	 */
+	private void transmit(Packet p, long now) {
+		sub.send(p.retain());
+
+		//update send buffer and related data
+		fit(diff(sendSeqNum, sendBase));
+		++numUnacked;
+		sendBuf[slot(p.seqNum)] = p;	
+		sendTime[slot(p.seqNum)] = now;
+		resent[slot(p.seqNum)] = false;
+		sendSeqNum = incr(sendSeqNum);
+		sendNext = sendSeqNum;
+
+		//start timer, unless it's already running
+		//for an older packet
+		if (!timerOn) sendAgain = now + rto;
+		timerOn = true;
+	}
+
+	/** Test if a received packet takes a sequence number.
+	 *  @param p is a packet, whose piggybacked ack, if any, has been
+	 *  processed
+	 *  @return true for data packets and FINs
+	 */
+	private boolean sequenced(Packet p) {
+		return p.type == Packet.DATA || p.type == Packet.FIN;
+	}
+
+	/** Send a SYN, and set the time to send it again.
+	 *  @param now is the current time
+	 */
+	private void syn(long now) {
+		Packet syn = pool.alloc();
+		syn.type = Packet.SYN;
+		syn.wide = wide;
+		sub.send(syn);
+		synAgain = now + synWait;
+	}
+
+	/** Handle a received packet while opening a connection.
+	 *  A SYN is answered with a SYN_ACK, even once the connection is
+	 *  open, since an earlier answer may have been lost. Hearing from
+	 *  the peer opens the connection; a peer only sends data and acks
+	 *  once it has heard from us, so they (like a SYN_ACK) show that
+	 *  our SYN need not be resent. Anything else that arrives before
+	 *  the peer's SYN or SYN_ACK is left over from an earlier
+	 *  connection, and is discarded.
+	 *  @param p is the packet
+	 *  @return true if p was consumed here, false if it is to be
+	 *  processed as usual
+	 */
+	private boolean control(Packet p) {
+		boolean syn = (p.type == Packet.SYN);
+		if (syn || p.type == Packet.SYN_ACK) {
+			if (syn) {
+				Packet ack = pool.alloc();
+				ack.type = Packet.SYN_ACK;
+				ack.wide = wide;
+				sub.send(ack);
+			} else synAcked = true;
+			if (!established) {
+				// waiting for the peer is no sign of loss
+				established = true;
+				rto = baseRto(); backoffs = 0;
+			}
+			p.release();
+			return true;
+		}
+		if (!established) {
+			p.release();
+			return true;
+		}
+		synAcked = true;
+		return false;
+	}
+
+	/** Decide if a stopping Rdt may quit.
+	 *  @param now is the current time
+	 *  @return true once every packet sent has been acked and, with
+	 *  connection management, the peer's FIN has arrived, or once the
+	 *  peer seems to have gone away
+	 */
+	private boolean drained(long now) {
+		if (gone(now)) return true;
+		if (!connect) return numUnacked == 0;
+		if (!finSent) return false;
+		if (numUnacked > 0) {
+			// the FIN is the last packet sent
+			Packet last = sendBuf[slot(diff(sendSeqNum, 1))];
+			return peerClosed && numUnacked == 1 && backoffs >= 2 &&
+			       last != null && last.type == Packet.FIN;
+		}
+		return peerClosed;
+	}
+
+	/** Decide if the peer seems to have gone away.
+	 *  A peer that is still sending anything is never taken to have
+	 *  gone, however many of our packets are lost. Nor is one that is
+	 *  silent while its own timer backs off, up to MAX_BACKOFFS times.
+	 *  @param now is the current time
+	 *  @return true if nothing has been heard from the peer for the
+	 *  base timeout doubled MAX_BACKOFFS times, and either there have
+	 *  been MAX_BACKOFFS timeouts in a row or our FIN has been acked
+	 *  and the peer's has not come
+	 */
+	private boolean gone(long now) {
+		long silence = Math.min(baseRto() << MAX_BACKOFFS, MAX_TIMEOUT);
+		if (now - lastHeard <= silence) return false;
+		if (backoffs >= MAX_BACKOFFS) return true;
+		return connect && finSent && numUnacked == 0 && !peerClosed;
+	}
+
+	/** Create a plain ack.
+	 *  @param seqNum is the sequence number being acked
+	 *  @return a pooled ack packet
+	 */
+	private Packet ack(int seqNum) {
+		Packet ack = pool.alloc();
+		ack.type = Packet.ACK;
+		ack.seqNum = seqNum;
+		ack.wide = wide;
+		advertise(ack);
+		acksSent.increment();
+		return ack;
+	}
+
+	/** Note that an in-order packet has arrived and needs an ack.
+	 *  The ack is sent at once if ackEvery packets are owed,
+	 *  otherwise it is held back until ackDue.
+	 *  @param now is the current time
+	 */
+	private void owe(long now) {
+		if (acksOwed++ == 0) ackDue = now + ackDelay;
+		if (acksOwed >= ackEvery) sub.send(owedAck());
+	}
+
+	/** Create the ack for all packets received so far.
+	 *  Clears the count of acks owed.
+	 *  @return a pooled ack (or sack) packet
+	 */
+	private Packet owedAck() {
+		acksOwed = 0;
+		return (mode == SEL_REPEAT ? sack() : ack(lastRcvd));
+	}
+
+	/** Find the first packet that has not been received.
+	 *  In go-back-N mode this is always expSeqNum.
+	 *  @return the sequence number following the packets received
+	 *  in order
+	 */
+	private int nextExpected() {
+		if (mode != SEL_REPEAT) return expSeqNum;
+		// packets held in recvBuf from recvBase on are in order
+		int next = recvBase;
+		int n = 0;
+		int held = Math.min(wSize, mask + 1);
+		while (n < held && recvBuf[slot(next)] != null) {
+			next = incr(next); n++;
+		}
+		return next;
+	}
+
+	/** Get the cumulative ack for the packets received so far.
+	 *  @return the sequence number of the last packet received in order
+	 */
+	private int lastInOrder() {
+		return diff(nextExpected(), 1);
+	}
+
+	/** Create a selective ack for the current receive window.
+	 *  The sequence number is the last packet received in order,
+	 *  and the payload has a bit for each packet after that, up to
+	 *  the end of the receive window; trailing zero bytes are omitted.
+	 *  @return a pooled sack packet
+	 */
+	private Packet sack() {
+		int next = nextExpected();
+		Packet ack = pool.alloc();
+		ack.type = Packet.SACK;
+		ack.seqNum = diff(next, 1);
+		ack.wide = wide;
+		advertise(ack);
+
+		// a bit for each packet the buffer can hold, as far as
+		// the bitmap fits in the packet
+		int room = Math.min(wSize, mask + 1) - diff(next, recvBase);
+		int span = Math.min(room, 8*(Packet.MAXLEN - ack.hdrLen()));
+
+		ByteBuffer bits = ack.buffer();
+		bits.clear();
+		int last = 0; // length up to the last non-zero byte
+		int x = next;
+		for (int i = 0; i < span; i += 8) {
+			int b = 0;
+			for (int j = 0; j < 8 && i+j < span; j++) {
+				if (recvBuf[slot(x)] != null) b |= 0x80 >> j;
+				x = incr(x);
+			}
+			bits.put((byte) b);
+			if (b != 0) last = bits.position();
+		}
+		bits.position(last); bits.flip();
+		ack.payload = bits;
+		acksSent.increment();
+		return ack;
+	}
+
+	/** Get the space for messages in a bundle.
+	 *  Leaves room for the optional header fields.
+	 *  @return the largest bundle payload
+	 */
+	private int bundleRoom() {
+		int w = (wide ? 4 : 2);
+		return maxPayload() - (piggyback ? w : 0) - (flowControl ? w : 0);
+	}
+
+	/** Get the largest payload of a packet without optional fields.
+	 *  @return the payload that fits with a plain (or wide) header
+	 */
+	private int maxPayload() {
+		return Packet.MAXPAYLOAD - (wide ? 2 : 0);
+	}
+
+	/** Decide if new data can be sent, when aggregating messages.
+	 *  The first time it is called for a waiting message, it starts
+	 *  the delay for that message.
+	 *  @param now is the current time
+	 *  @return true if the delay has passed or the messages waiting
+	 *  in fromSrc fill a packet
+	 */
+	private boolean bundleDue(long now) {
+		if (!aggregate) return true;
+		if (aggDue < 0) aggDue = now + aggDelay;
+		if (now >= aggDue) return true;
+		int n = 0;
+		Packet q;
+		for (int i = 0; (q = fromSrc.peek(i)) != null; i++) {
+			n += 2 + q.length();
+			if (q.more || n >= bundleRoom()) return true;
+		}
+		return false;
+	}
+
+	/** Bundle a message with others that are waiting to be sent.
+	 *  Fragments of longer messages are never bundled.
+	 *  @param first is the first message, just taken from fromSrc
+	 *  @return first, if no other message fits with it, otherwise a
+	 *  new packet holding it and as many of the messages that follow
+	 *  it as fit; the bundled packets are released
+	 */
+	private Packet bundle(Packet first) {
+		int room = bundleRoom() - 2 - first.length();
+		Packet q = fromSrc.peek();
+		if (first.more || q == null || q.more || 2 + q.length() > room)
+			return first;
+		Packet b = pool.alloc();
+		ByteBuffer buf = b.buffer();
+		buf.putShort((short) first.length()).put(first.payload);
+		first.release();
+		while (q != null && !q.more && 2 + q.length() <= room) {
+			fromSrc.poll();
+			room -= 2 + q.length();
+			buf.putShort((short) q.length()).put(q.payload);
+			q.release();
+			q = fromSrc.peek();
+		}
+		buf.flip();
+		b.payload = buf;
+		b.bundle = true;
+		return b;
+	}
+
+	/** Count the messages in a packet.
+	 *  @param p is a received data packet
+	 *  @return the number of messages in a bundle, or 1
+	 */
+	private int messages(Packet p) {
+		if (!p.bundle) return 1;
+		ByteBuffer b = p.payload;
+		int k = 0;
+		for (int i = b.position(); i + 2 <= b.limit();
+		     i += 2 + (b.getShort(i) & 0xffff)) k++;
+		return k;
+	}
+
+	/** Deliver the messages in a bundle to the sink.
+	 *  Each is copied into a packet of its own.
+	 *  @param p is a bundle; it is released
+	 */
+	private void unbundle(Packet p) {
+		ByteBuffer b = p.payload;
+		int i = b.position();
+		while (i + 2 <= b.limit()) {
+			int n = b.getShort(i) & 0xffff;
+			if (i + 2 + n > b.limit()) break; // malformed
+			Packet m = pool.alloc();
+			m.setPayload(b, i + 2, n);
+			toSnk.add(m);
+			msgsDelivered.increment();
+			bytesDelivered.add(n);
+			i += 2 + n;
+		}
+		p.release();
+	}
+
+	/** Mark a packet in the send window as acked and release it.
+	 *  @param x is the sequence number of an acked packet
+	 *  @return true if x was newly acked and was never retransmitted,
+	 *  so it provides a valid round-trip sample
+	 */
+	private boolean markAcked(int x) {
+		if (diff(x, sendBase) >= diff(sendSeqNum, sendBase) ||
+		    sendBuf[slot(x)] == null)
+			return false;
+		sendBuf[slot(x)].release();
+		sendBuf[slot(x)] = null;
+		--numUnacked;
+		rto = baseRto(); // progress ends any backoff
+		backoffs = 0;
+		opened();
+		return !resent[slot(x)];
+	}
+
+	/** Slide the send window past any acked packets.
+	 *  @param now is the current time
+	 *  @param oldBase is the value of sendBase before the ack was
+	 *  processed; the timer restarts if the base has moved
+	 */
+	private void slide(long now, int oldBase) {
+		while (sendBase != sendSeqNum && sendBuf[slot(sendBase)] == null) {
+			sendBase = incr(sendBase);
+		}
+		catchUp();
+		//restart timer for the new oldest packet
+		if (sendBase != oldBase) sendAgain = now + rto;
+		if (numUnacked == 0) timerOn = false;
+	}
+
+	/** Process a selective ack.
+	 *  Marks the packets it acks cumulatively and those in its bitmap,
+	 *  takes a round-trip sample from the most recently sent of them,
+	 *  then retransmits any packet that three later packets have
+	 *  overtaken and that has not been retransmitted already.
+	 *  @param p is a SACK packet
+	 *  @param now is the current time
+	 */
+	private void processSack(Packet p, long now) {
+		// acked in order, up to and including p.seqNum
+		long latest = ackThrough(p.seqNum);
+
+		// acked out of order, from the bitmap
+		ByteBuffer bits = p.payload;
+		int x = incr(p.seqNum);
+		for (int i = 0; i < 8*bits.remaining(); i++) {
+			if ((bits.get(bits.position() + i/8) & (0x80 >> (i%8))) != 0
+			    && markAcked(x))
+				latest = Math.max(latest, sendTime[slot(x)]);
+			x = incr(x);
+		}
+		if (latest >= 0) rttSample(now - latest);
+
+		// fast retransmit of holes with three acked packets above them
+		int above = 0;
+		x = sendSeqNum;
+		for (int i = diff(sendSeqNum, sendBase); i > 0; i--) {
+			x = diff(x, 1);
+			if (sendBuf[slot(x)] == null) {
+				above++;
+			} else if (above >= 3 && !resent[slot(x)]) {
+				fastRetransmits.increment();
+				congestion(false);
+				refresh(sendBuf[slot(x)]);
+				sub.send(sendBuf[slot(x)].retain());
+				retransmits.increment();
+				resent[slot(x)] = true;
+			}
+		}
+	}
+
+	/** Mark all packets up to and including an acked one as acked.
+	 *  Used in selective-repeat mode.
+	 *  @param seqNum is the sequence number of the last packet acked
+	 *  @return the time the most recently sent of the newly acked
+	 *  packets that were never retransmitted was sent, or -1 if there
+	 *  is no such packet
+	 */
+	private long ackThrough(int seqNum) {
+		long latest = -1;
+		if (diff(seqNum, sendBase) >= diff(sendSeqNum, sendBase))
+			return latest; // old ack
+		int x = sendBase;
+		for (int i = diff(seqNum, sendBase); i >= 0; i--) {
+			if (markAcked(x)) latest = Math.max(latest, sendTime[slot(x)]);
+			x = incr(x);
+		}
+		return latest;
+	}
+
+	/** Process a cumulative ack.
+	 *  Used for acks in go-back-N mode, and for piggybacked acks
+	 *  in both modes.
+	 *  @param seqNum is the sequence number of the last packet acked
+	 *  @param now is the current time
+	 */
+	private void cumAck(int seqNum, long now) {
+		if (mode == SEL_REPEAT) {
+			int oldBase = sendBase;
+			long latest = ackThrough(seqNum);
+			if (latest >= 0) rttSample(now - latest);
+			slide(now, oldBase);
+			return;
+		}
+		//ignore acks outside the window
+		if (diff(seqNum, sendBase) >= diff(sendSeqNum, sendBase))
+			return;
+		int numUpdates = (diff(seqNum,sendBase)) + 1;
+		int lastSent = diff(sendSeqNum, 1);
+		if (seqNum == lastSent) {
+			timerOn = false;
+		}
+		if (!resent[slot(seqNum)])
+			rttSample(now - sendTime[slot(seqNum)]);
+
+		//process all packets from sendBase to ack received
+		//in window.
+		for (int x = 0; x < numUpdates; ++x) {
+			sendBuf[slot(sendBase)].release();
+			sendBuf[slot(sendBase)] = null;
+			sendBase = incr(sendBase);		
+			dupAcks = 0;
+			--numUnacked;
+			opened();
+		}
+		catchUp();
+		rto = baseRto(); // progress ends any backoff
+		backoffs = 0;
+		sendAgain = now + rto; //restart timer
+	}
+
+	/** Keep sendNext inside the send window.
+	 *  Packets that are acked while waiting to be resent have no
+	 *  need to be resent.
+	 */
+	private void catchUp() {
+		if (diff(sendSeqNum, sendNext) > diff(sendSeqNum, sendBase))
+			sendNext = sendBase;
+	}
+
+	/** Update the ack piggybacked on a packet that is being resent.
+	 *  The ack it was first sent with may be long out of date.
+	 *  @param p is a packet in sendBuf
+	 */
+	private void refresh(Packet p) {
+		if (p.type != Packet.DATA_ACK) return;
+		p.ackNum = lastInOrder();
+		advertise(p);
 	}
 
 	/** Resend all packets between the ones numbered with sendSeqNum and
-	*   sendBase
+	*   sendBase; in selective-repeat mode, only those not yet acked.
+	*   With congestion control, the packets are resent later, as
+	*   the congestion window allows.
 	*   @param now is the current time
 	*/
 	public void resend(long now) {
 		int numResend = diff(sendSeqNum, sendBase); //=num of packets to resend
 		dupAcks = 0;
+		if (cc) {
+			sendNext = sendBase;
+			sendAgain = now + rto; //reset timer
+			timerOn = true;
+			return;
+		}
 		
 		while (!sub.readyX(numResend)) { //do nothing until ready
+			if (quit) { // a substrate that has stopped never drains
+				sendAgain = now + rto;
+				timerOn = true;
+				return;
+			}
 			try {
 				Thread.sleep(0,1);
 			} catch(Exception e) {
@@ -249,25 +1386,59 @@ public class Rdt implements Runnable {
 				System.exit(1);
 			}
 		} 
-		short base = sendBase; //send packets
+		int base = sendBase; //send packets
 		for (int i = 0; i < numResend; ++i) {
-			sub.send(sendBuf[base]);
+			if (sendBuf[slot(base)] != null) {
+				refresh(sendBuf[slot(base)]);
+				sub.send(sendBuf[slot(base)].retain());
+				retransmits.increment();
+				resent[slot(base)] = true;
+			}
 			base = incr(base);
 		}
-		sendAgain = now + timeout; //reset timer
+		sendAgain = now + rto; //reset timer
 		timerOn = true;
 	}
 
 	/** Send a message to peer.
-	 *  @param message is a string to be sent to the peer
+	 *  @param message is a string to be sent to the peer; it is sent
+	 *  as US-ASCII text
 	 */
 	public void send(String message) {
-		try {
-			fromSrc.put(message);
-		} catch(Exception e) {
-			System.out.println("Rdt:send: put exception" + e);
+		send(ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	/** Send a binary message to peer.
+	 *  Messages of more than 1397 bytes (1395 with wide packets) are
+	 *  split into fragments that are sent as separate packets, and
+	 *  delivered to the peer as a single message once all have
+	 *  arrived. Peers that do not support fragmentation can only
+	 *  receive shorter messages.
+	 *  @param message is a buffer whose bytes from position to limit
+	 *  are sent to the peer; the bytes are copied, so the buffer may
+	 *  be reused after the call
+	 */
+	public synchronized void send(ByteBuffer message) {
+		if (closing) {
+			System.err.println("Rdt:send: connection closed");
 			System.exit(1);
 		}
+		int pos = message.position();
+		int lim = message.limit();
+		do {
+			int n = Math.min(lim - pos, maxPayload());
+			Packet p = pool.alloc();
+			p.setPayload(message, pos, n);
+			pos += n;
+			p.more = (pos < lim);
+			try {
+				fromSrc.put(p);
+			} catch(Exception e) {
+				System.out.println("Rdt:send: put exception" + e);
+				System.exit(1);
+			}
+			if (eventDriven) wakeup();
+		} while (pos < lim);
 	}
 		
 	/** Test if Rdt is ready to send a message.
@@ -276,17 +1447,99 @@ public class Rdt implements Runnable {
 	public boolean ready() { return fromSrc.remainingCapacity() > 0; }
 
 	/** Get an incoming message.
-	 *  @return next message
+	 *  @return next message, decoded as US-ASCII text
 	 */
 	public String receive() {
-		String s = null;
+		Packet p = take();
+		if (p.next != null) { // reassembled from fragments
+			ByteBuffer b = gather(p);
+			return new String(b.array(), 0, b.limit(),
+					  StandardCharsets.US_ASCII);
+		}
+		ByteBuffer b = p.payload;
+		String s = new String(b.array(), b.arrayOffset() + b.position(),
+				      b.remaining(), StandardCharsets.US_ASCII);
+		p.release();
+		return s;
+	}
+
+	/** Get an incoming binary message.
+	 *  @return next message, in a new buffer whose bytes from
+	 *  position to limit are the payload
+	 */
+	public ByteBuffer receiveBytes() {
+		return gather(take());
+	}
+
+	/** Get an incoming binary message without allocating memory.
+	 *  @param dst is a buffer that the payload is copied into, at its
+	 *  position; it must have room for the whole message, which is at
+	 *  most 1397 bytes unless the peer sends longer messages
+	 *  @return the number of bytes copied
+	 */
+	public int receive(ByteBuffer dst) {
+		Packet p = take();
+		int n = length(p);
+		if (n > dst.remaining()) {
+			System.err.println("Rdt:receive: message too long ("
+					   + n + " bytes)");
+			System.exit(1);
+		}
+		while (p != null) {
+			Packet q = p.next;
+			dst.put(p.payload);
+			p.release();
+			p = q;
+		}
+		return n;
+	}
+
+	/** Get the length of a message.
+	 *  @param p is the first packet of the message
+	 *  @return the total payload length of the packet and the
+	 *  fragments chained to it
+	 */
+	private int length(Packet p) {
+		int n = 0;
+		for (; p != null; p = p.next) n += p.length();
+		return n;
+	}
+
+	/** Copy a message into a new buffer.
+	 *  @param p is the first packet of the message; it and the
+	 *  fragments chained to it are released
+	 *  @return a buffer whose bytes from position to limit are
+	 *  the message
+	 */
+	private ByteBuffer gather(Packet p) {
+		ByteBuffer b = ByteBuffer.allocate(length(p));
+		while (p != null) {
+			Packet q = p.next;
+			b.put(p.payload);
+			p.release();
+			p = q;
+		}
+		b.flip();
+		return b;
+	}
+
+	/** Take the next packet from toSnk, waiting if necessary.
+	 *  @return the packet; the caller must release it
+	 */
+	private Packet take() {
+		Packet p = null;
 		try {
-			s = toSnk.take();
+			p = toSnk.take();
 		} catch(Exception e) {
 			System.out.println("Rdt:send: take exception" + e);
 			System.exit(1);
 		}
-		return s;
+		// packets held for want of room in toSnk may now be
+		// delivered, and a small window may need an update
+		if (eventDriven && (recvHeld > 0 ||
+				    (flowControl && lastRwnd < wSize)))
+			wakeup();
+		return p;
 	}
 	
 	/** Test for the presence of an incoming message.
@@ -8,36 +8,89 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class Receiver implements Runnable {
 	private Thread myThread;	// thread that executes run() method
+	private ThreadFactory threads;	// creates it; null for the default
 	private Sender sndr;
+	private PacketPool pool;	// pool that packets are allocated from
+	private MuxSubstrate mux;	// demultiplexer, or null
 
 	private DatagramSocket sock;
-	private ArrayBlockingQueue<Packet> rcvq;
+	private PacketQueue rcvq;
 	private InetSocketAddress peerAdr;
 	private boolean debug;
+	private Tracer tracer;		// records packets received, or null
+	private volatile Runnable listener; // run when a packet is queued
+	private volatile boolean quit;	// stop at the next chance
+
+	private LongAdder rcvCount, rcvAck, discCount;
 
 	Receiver(DatagramSocket sock, InetSocketAddress peerAdr,
-		 Sender sndr, boolean debug) {
+		 Sender sndr, boolean debug, PacketPool pool,
+		 Metrics metrics) {
 		this.sock = sock; this.peerAdr = peerAdr;
 		this.sndr = sndr; this.debug = debug;
+		this.pool = pool;
 
 		// initialize queue for received packets
 		// stores both the packet and socket address of the sender
-		rcvq = new ArrayBlockingQueue<Packet>(1000,true);
+		rcvq = new PacketQueue(1000);
+
+		rcvCount = metrics.counter("dataReceived");
+		rcvAck = metrics.counter("acksReceived");
+		discCount = metrics.counter("arrivalsDiscarded");
+		metrics.gauge("rcvq", () -> rcvq.size());
+	}
+
+	/** Initialize a Receiver for a socket shared by many sessions.
+	 *  Packets from any source are accepted and handed to mux,
+	 *  instead of being queued here.
+	 */
+	Receiver(DatagramSocket sock, MuxSubstrate mux, boolean debug,
+		 PacketPool pool, Metrics metrics) {
+		this(sock,null,null,debug,pool,metrics);
+		this.mux = mux;
 	}
 
+	/** Set the factory for the thread that runs this Receiver.
+	 *  Must be called before start().
+	 *  @param threads is the factory, or null for Threads.factory()
+	 */
+	public void setThreadFactory(ThreadFactory threads) {
+		this.threads = threads;
+	}
+
+	/** Record the packets received in a trace.
+	 *  Must be called before start().
+	 *  @param tracer is the tracer, or null for none
+	 */
+	public void setTracer(Tracer tracer) { this.tracer = tracer; }
+
 	/** Instantiate run() thread and start it running. */
 	public void start() {
-		myThread = new Thread(this); myThread.start();
+		myThread = Threads.newThread(threads,this); myThread.start();
 	}
 
 	/** Wait for thread to quit. */
 	public void join() throws Exception { myThread.join(); }
 
+	/** Stop the thread, within the socket's timeout, or at once if
+	 *  the socket is closed.
+	 */
+	public void stop() { quit = true; }
+
+	/** Set a listener to be run whenever a packet is queued.
+	 *  @param listener is the listener to run, or null for none
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
 	/** Receive thread places incoming packet in a queue.
 	 *  This method is run by a separate thread. It simply receives
 	 *  packets from the datagram socket and places them in a queue.
@@ -48,40 +101,49 @@ public class Receiver implements Runnable {
 		long now, eventTime, firstEventTime;
 		now = eventTime = firstEventTime = 0;
 
-		Packet p;
-		byte[] buf = new byte[2000];
-        DatagramPacket dg = new DatagramPacket(buf, buf.length);
-
-		int rcvCount, rcvAck, discCount;
-		rcvCount = rcvAck = discCount = 0;
+		// each packet is received directly into its own buffer,
+		// and its payload refers to that buffer
+		Packet p = null;
+		byte[] buf = new byte[1]; // replaced by packet buffers
+		DatagramPacket dg = new DatagramPacket(buf, buf.length);
 
-		// run until nothing has happened for 5 seconds
-		while (eventTime == 0 || now < eventTime + 5000000000L) {
+		// run until stopped or nothing has happened for 5 seconds
+		while (!quit && (eventTime == 0 || now < eventTime + 5000000000L)) {
 			now = System.nanoTime() - t0;
+			if (mux != null) mux.tick(t0 + now);
+			if (p == null) {
+				p = pool.alloc();
+				dg.setData(p.buffer().array());
+			}
 	                try {
 	                        sock.receive(dg);
 	                } catch(SocketTimeoutException e) {
 	                        continue; // check for termination, then retry
 	                } catch(Exception e) {
+				if (quit) break; // socket closed by stop
 	                        System.err.println("Receiver: receive "
 						    + "exception: " + e);
 	                        System.exit(1);
 			}
+			// a receive cut short by close() may return nothing
+			if (quit && sock.isClosed()) break;
 			eventTime = now;
 			// set peerAdr if not yet initialized
-			// otherwise, that it's the same peer
-			if (peerAdr == null) {
+			// otherwise, that it's the same peer;
+			// a shared socket accepts any peer
+			if (mux == null && peerAdr == null) {
 				peerAdr = (InetSocketAddress)
 						dg.getSocketAddress();
 				sndr.setPeerAdr(peerAdr);
-			} else if (!dg.getSocketAddress().equals(peerAdr)) {
+			} else if (mux == null &&
+				   !dg.getSocketAddress().equals(peerAdr)) {
 	                        System.err.println("Receiver: received "
 					+ "packet from unexpected sender: "
 					+ dg.getSocketAddress());
 	                        System.exit(1);
 			}
-			p = new Packet();
-			if (!p.unpack(dg.getData(), dg.getLength())) {
+			ByteBuffer b = p.buffer(); b.limit(dg.getLength());
+			if (!p.decode(b)) {
                         	System.err.println("Receiver: error while "
 						   + "unpacking packet");
                        		System.exit(1);
@@ -92,14 +154,25 @@ public class Receiver implements Runnable {
 	                                + dg.getSocketAddress() + " " + p);
 	                        System.out.flush();
 	                }
-			if (p.type == 0) rcvCount++;
-			else rcvAck++;
-			if (!rcvq.offer(p)) discCount++; // discard if rcvq full
+			if (p.isData()) rcvCount.increment();
+			else rcvAck.increment();
+			// only this thread adds to rcvq, so if there is room,
+			// the packet will be queued
+			if (tracer != null)
+				tracer.record(Tracer.RECEIVED, p, mux == null
+					      && rcvq.remainingCapacity() == 0);
+			if (mux != null) {
+				mux.deliver(p, (InetSocketAddress)
+					    dg.getSocketAddress(), t0 + now);
+			} else if (!rcvq.offer(p)) { // discard if rcvq full
+				discCount.increment(); p.release();
+			} else if (listener != null) listener.run();
+			p = null;
 			if (firstEventTime == 0) firstEventTime = now;
 		}
-		System.out.println("Receiver: received " + rcvCount 
-				+ " data packets, " + rcvAck + " acks"); 
-		System.out.println("          discarded " + discCount 
+		System.out.println("Receiver: received " + rcvCount.sum()
+				+ " data packets, " + rcvAck.sum() + " acks"); 
+		System.out.println("          discarded " + discCount.sum()
 				+ " arrivals "); 
 		System.out.println("          runLength " 
 			+ (((double) (eventTime - firstEventTime))/1000000000));
@@ -10,59 +10,147 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 public class Sender implements Runnable {
 	private DatagramSocket sock;
 	private InetSocketAddress peerAdr;
 	private double discProb;
 	private boolean debug;
+	private Tracer tracer;		// records packets sent, or null
 
-	private ArrayBlockingQueue<Packet> sendq;
+	private PacketQueue sendq;
+	private PacketPool pool;	// pool that sent packets return to
 	private Thread myThread;	// thread that executes run() method
+	private ThreadFactory threads;	// creates it; null for the default
+	private int batchSize = 32;	// max packets sent per wakeup
+	private boolean multiplexed = false; // packets carry destination
+	private TokenBucket bucket;	// paces transmissions
+	private volatile boolean quit;	// stop once sendq is empty
+
+	// queued by stop(), behind the packets still to be sent
+	private static final Packet STOP = new Packet();
+
+	private LongAdder sendCount, sendAck, discCount, discAck;
+	private LongAdder batchCount, paceCount;
 
 	Sender(DatagramSocket sock, InetSocketAddress peerAdr,
-		    double discProb, boolean debug) {
+		    double discProb, boolean debug, PacketPool pool,
+		    Metrics metrics) {
 		this.sock = sock; this.peerAdr = peerAdr;
 		this.discProb = discProb; this.debug = debug;
+		this.pool = pool;
 
 		// initialize queue for received packets
 		// stores both the packet and socket address of the sender
-		sendq = new ArrayBlockingQueue<Packet>(1000,true);
+		sendq = new PacketQueue(1000);
+		bucket = new TokenBucket(0,TokenBucket.BURST);
+
+		sendCount = metrics.counter("dataSent");
+		sendAck = metrics.counter("acksSent");
+		discCount = metrics.counter("dataDiscarded");
+		discAck = metrics.counter("acksDiscarded");
+		batchCount = metrics.counter("batches");
+		paceCount = metrics.counter("pacingDelays");
+		metrics.gauge("sendq", () -> sendq.size());
+	}
+
+	/** Set the factory for the thread that runs this Sender.
+	 *  Must be called before start().
+	 *  @param threads is the factory, or null for Threads.factory()
+	 */
+	public void setThreadFactory(ThreadFactory threads) {
+		this.threads = threads;
 	}
 
 	/** Instantiate run() thread and start it running. */
 	public void start() {
-		myThread = new Thread(this); myThread.start();
+		myThread = Threads.newThread(threads,this); myThread.start();
 	}
 
 	/** Wait for thread to quit. */
 	public void join() throws Exception { myThread.join(); }
 
+	/** Stop the thread, once the packets queued so far have been sent.
+	 *  Must not be called while a packet is being sent.
+	 */
+	public void stop() { quit = true; send(STOP); }
+
 	public void setPeerAdr(InetSocketAddress peerAdr) {
 		this.peerAdr = peerAdr;
 	}
 
+	/** Send each packet to the peer address it carries.
+	 *  Used when the socket is shared by several sessions; packets
+	 *  without an address still go to the default peer.
+	 *  @param multiplexed is true to use per-packet addresses
+	 */
+	public void setMultiplexed(boolean multiplexed) {
+		this.multiplexed = multiplexed;
+	}
+
+	/** Record the packets sent and discarded in a trace.
+	 *  Must be called before start().
+	 *  @param tracer is the tracer, or null for none
+	 */
+	public void setTracer(Tracer tracer) { this.tracer = tracer; }
+
+	/** Set the maximum number of packets sent per wakeup.
+	 *  Must be called before start().
+	 *  @param batchSize is the maximum batch size (at least 1)
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1,batchSize);
+	}
+
+	/** Pace transmissions with a token bucket.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  to send packets as fast as the socket accepts them
+	 *  @param burst is the most bytes sent back-to-back
+	 */
+	public void setPacing(double rate, int burst) {
+		bucket.setBurst(burst); bucket.setRate(rate);
+	}
+
+	/** Change the pacing rate; may be called at any time.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  for no limit
+	 */
+	public void setPacingRate(double rate) { bucket.setRate(rate); }
+
 	/** Send thread sends out-going packets to the network.
 	 *  This method is run by a separate thread. Whenever there
-	 *  is an outgoing packet to be sent, it sends it and waits
-	 *  for the next.
+	 *  are out-going packets, it drains up to batchSize of them
+	 *  from the queue, packs them into a reused buffer arena and
+	 *  sends them, then waits for the next. When pacing, each
+	 *  packet waits for its tokens, so a batch may go out spread
+	 *  over time rather than back-to-back.
 	 */
 	public void run() {
 		long t0 = System.nanoTime();
 		long now, eventTime, firstEventTime;
 		now = eventTime = firstEventTime = 0;
 
-		byte[] buf = new byte[1]; // dummy buffer, not really used 
-                DatagramPacket dg = new DatagramPacket(buf,1);
+		// one slot in the arena per packet in a batch, large
+		// enough for a parity packet
+		final int slot = Packet.BUFLEN;
+		byte[] arena = new byte[batchSize * slot];
+		DatagramPacket[] dg = new DatagramPacket[batchSize];
+		for (int i = 0; i < batchSize; i++)
+			dg[i] = new DatagramPacket(arena, i*slot, slot);
+		ArrayList<Packet> batch = new ArrayList<Packet>(batchSize);
 
-		int sendCount, sendAck, discCount, discAck;
-		sendCount = sendAck = discCount = discAck = 0;;
+		int maxBatch = 0;
 
-		// run until nothing has happened for 3 seconds
-		while (eventTime == 0 || now < eventTime + 3000000000L) {
+		// run until stopped or nothing has happened for 3 seconds
+		while (!(quit && sendq.isEmpty()) &&
+		       (eventTime == 0 || now < eventTime + 3000000000L)) {
 			now = System.nanoTime() - t0;
-			// idle until peerAdr is set
-			if (peerAdr == null) {
+			// idle until peerAdr is set; with no peer, there
+			// is nothing to send before stopping
+			if (peerAdr == null && !multiplexed) {
+				if (quit) break;
 				try {
 					Thread.sleep(100);
 				} catch(Exception e) {
@@ -73,7 +161,8 @@ public class Sender implements Runnable {
 				continue;
 			}
 			// check sendq for a packet, if none arrive in 100 ms,
-			// check termination condition before trying again
+			// check termination condition before trying again;
+			// then take whatever else is already waiting
 			Packet p = null;
 			try {
 				p = sendq.poll(100,TimeUnit.MILLISECONDS);
@@ -82,55 +171,103 @@ public class Sender implements Runnable {
 				System.exit(1);
 			}
 			if (p == null) continue; // check for termination
-			if (p.type == 0) sendCount++;
-			else sendAck++;
+			batch.clear(); batch.add(p);
+			sendq.drainTo(batch,batchSize-1);
+			// STOP is never sent, wherever it falls in the batch
+			batch.removeIf(x -> x == STOP);
+			if (batch.isEmpty()) continue;
+			batchCount.increment();
+			maxBatch = Math.max(maxBatch,batch.size());
 			eventTime = now;
 			if (firstEventTime == 0) firstEventTime = now;
-			if (Math.random() < discProb) {
-				if (p.type == 0) discCount++;
-				else discAck++;
-				if (debug) {
-					System.out.println("discarding " + p);
-					System.out.flush();
+
+			// pack the packets that survive discarding into
+			// consecutive slots of the arena
+			int n = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				p = batch.get(i);
+				if (p.isData()) sendCount.increment();
+				else sendAck.increment();
+				if (Math.random() < discProb) {
+					if (p.isData()) discCount.increment();
+					else discAck.increment();
+					if (debug) {
+						System.out.println("discarding " + p);
+						System.out.flush();
+					}
+					if (tracer != null)
+						tracer.record(Tracer.SENT,p,true);
+					p.release();
+					continue;
 				}
-				continue;
+				// traced in order, before any pacing delay
+				if (tracer != null)
+					tracer.record(Tracer.SENT,p,false);
+				int len = p.pack(arena, n*slot);
+				if (len < 0) {
+					System.err.println("Sender: packing error " +p);
+					System.exit(1);
+				}
+				dg[n].setLength(len);
+				dg[n].setSocketAddress(p.peer != null ? p.peer : peerAdr);
+				batch.set(n++,p);
 			}
 
-			// pack and send the packet
-			buf = p.pack();
-                	if (buf == null) {
-				System.err.println("Sender: packing error " +p);
-				System.exit(1);
-			}
-			dg.setData(buf); dg.setLength(buf.length);
-			dg.setSocketAddress(peerAdr);
-	                if (debug) {
-	                        System.out.println(sock.getLocalSocketAddress()
-	                                + " sending to " 
-	                                + dg.getSocketAddress() + " " + p);
-	                        System.out.flush();
-	                }
-                	try {
-				sock.send(dg);
-			} catch(Exception e) {
-				System.err.println("Sender: send error " + p);
-				System.exit(1);
+			// and send them, as the token bucket allows
+			for (int i = 0; i < n; i++) {
+				long w = bucket.reserve(dg[i].getLength(),
+							System.nanoTime());
+				if (w > 0) paceCount.increment();
+				while (w > 0) {
+					LockSupport.parkNanos(w);
+					w = bucket.reserve(dg[i].getLength(),
+							   System.nanoTime());
+				}
+				if (debug) {
+					System.out.println(sock.getLocalSocketAddress()
+						+ " sending to " 
+						+ dg[i].getSocketAddress() + " "
+						+ batch.get(i));
+					System.out.flush();
+				}
+				try {
+					sock.send(dg[i]);
+				} catch(Exception e) {
+					System.err.println("Sender: send error "
+							   + batch.get(i));
+					System.exit(1);
+				}
+				batch.get(i).release();
 			}
 		}
-		System.out.println("  Sender: sent " + sendCount 
-				+ " data packets, " + sendAck + " acks"); 
-		System.out.println("          discarded " + discCount 
-				+ " data packets, " + discAck + " acks"); 
+		long batches = batchCount.sum();
+		System.out.println("  Sender: sent " + sendCount.sum()
+				+ " data packets, " + sendAck.sum() + " acks"); 
+		System.out.println("          discarded " + discCount.sum()
+				+ " data packets, " + discAck.sum() + " acks"); 
+		System.out.println("          " + batches + " batches, "
+			+ "average " + (batches == 0 ? 0 :
+			   ((double) (sendCount.sum() + sendAck.sum()))/batches)
+			+ " packets, max " + maxBatch);
+		if (paceCount.sum() > 0)
+			System.out.println("          " + paceCount.sum()
+				+ " packets delayed by pacing");
+		System.out.println("          " + pool.created()
+			+ " packets created by pool");
 		System.out.println("          runLength " 
 			+ (((double) (eventTime - firstEventTime))/1000000000));
 	}
 
 	/** Send a packet to a specified destination.
-	 *  @param p is packet to be sent
+	 *  A multiplexed Sender is shared by the Rdts of many sessions,
+	 *  so they take turns adding to sendq.
+	 *  @param p is packet to be sent; the Sender releases it once
+	 *  it has been transmitted or discarded
 	 */
 	public void send(Packet p) {
 		try {
-			sendq.put(p);
+			if (!multiplexed) sendq.put(p);
+			else synchronized (sendq) { sendq.put(p); }
 		} catch(Exception e) {
 			System.err.println("Sender:send sendq exception " + e);
 			System.exit(1);
@@ -15,6 +15,8 @@
  *  run method in a new thread of control). It can be stopped
  *  using the stop method; this causes the run method to terminate
  *  its main loop and print a short status report, then return.
+ *  With connection management, it closes the Rdt once it has sent
+ *  its payloads, and stops by itself once the peer has closed too.
  */
 
 import java.io.*;
@@ -24,14 +26,17 @@ import java.util.concurrent.*;
 
 public class SrcSnk implements Runnable {
 	private Thread myThread;	// thread that executes run() method
+	private ThreadFactory threads;	// creates it; null for the default
 
 	private long delta;		// time between packets in ns
+	private long startDelay;	// time before the first packet in ns
 	private long runLength;		// amount of time to run in ns
 	private Rdt rdt;		// reference to Rdt object
 
 	private int inCount = 0;	// count of received packets
 	private int outCount = 0;	// count of sent packets
 	private boolean quit;		// stop thread when true
+	private volatile boolean failed; // connection failed before closing
 
 	/** Initialize a new SrcSnk object
 	 *  @param delta is a float, representing the amount of time to wait
@@ -44,11 +49,28 @@ public class SrcSnk implements Runnable {
 		this.delta = (long) (delta * 1000000000); // convert to ns
 		this.runLength = (long) (runLength * 1000000000);
 		this.rdt = rdt; this.quit = false;
+		this.startDelay = 1000000000;
+	}
+
+	/** Set the time to wait before sending the first payload.
+	 *  Must be called before start().
+	 *  @param startDelay is the delay in seconds (1 by default)
+	 */
+	public void setStartDelay(double startDelay) {
+		this.startDelay = (long) (startDelay * 1000000000);
+	}
+
+	/** Set the factory for the thread that runs this SrcSnk.
+	 *  Must be called before start().
+	 *  @param threads is the factory, or null for Threads.factory()
+	 */
+	public void setThreadFactory(ThreadFactory threads) {
+		this.threads = threads;
 	}
 
 	/** Instantiate and start a thread to execute run(). */
 	public void start() {
-		myThread = new Thread(this); myThread.start();
+		myThread = Threads.newThread(threads,this); myThread.start();
 	}
 
 	/** Signal run method to halt. */
@@ -57,17 +79,26 @@ public class SrcSnk implements Runnable {
 	/** wait for thread to terminate. */
 	public void join() throws Exception { myThread.join(); }
 
+	/** Test if the run ended because the connection failed.
+	 *  @return true if the peer went away before the connection was
+	 *  closed, so payloads may have been lost
+	 */
+	public boolean failed() { return failed; }
+
 	/** Run the SrcSnk thread.
 	 *  This method executes a loop that generates new outgoing
 	 *  payloads and receives incoming payloads. It sends packets
 	 *  for a specified period of time and terminates after the stop
-	 *  method is called.
+	 *  method is called, or once the peer has closed the connection
+	 *  and everything it sent has been received, or the connection
+	 *  has failed.
 	 */
 	public void run() {
 		long t0 = System.nanoTime();
 		long now = 0;
-		long next = 1000000000;
+		long next = startDelay;
 		long stopTime = next + runLength;
+		boolean closed = false;
 
 		int sleeptime; // time to sleep when nothing to do
 		if (delta > 0 && delta < 1000000) sleeptime = (int) delta;
@@ -76,8 +107,11 @@ public class SrcSnk implements Runnable {
 		String msg; 
 		inCount = outCount = 0;
 		int idleCount = 0;
-		while (!quit) {
+		while (!quit && !(closed && (rdt.finished() || rdt.failed()))) {
 			now = System.nanoTime() - t0;
+			if (!closed && runLength > 0 && now >= stopTime) {
+				rdt.close(); closed = true;
+			}
 			if (rdt.incoming()) {
 				msg = rdt.receive();
 				if (!msg.equals("testing " + inCount)) {
@@ -108,8 +142,10 @@ public class SrcSnk implements Runnable {
 				idleCount = 0;
 			}
 		}
+		failed = closed && !rdt.finished() && rdt.failed();
 		System.out.println("  SrcSnk: sent " + outCount
-					+ ", received " + inCount);
+					+ ", received " + inCount
+					+ (failed ? ", connection failed" : ""));
 		System.out.println("          runLength "
 					+ (((double) runLength)/1000000000));
 	}
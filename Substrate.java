@@ -1,76 +1,77 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
-
-public class Substrate {
-	private DatagramSocket sock;
-	private InetSocketAddress peerAdr;
-	private double discProb;
-	private boolean debug;
-
-	private Sender sndr;
-	private Receiver rcvr;
-	
-	/** Initialize a new Substrate object.
-	 *  @param myIp is the IP address to bind to the socket
-	 *  @param port is the port number to bind to the socket (may be 0)
-	 *  @param peerAdr is the IP address/port pair for the peer host
-	 *  (may be null, if this object is being used in a server)
-	 *  @param discProb is a discard probability used to randomly discard
-	 *  packets received from the Rdt object
-	 *  @param debug is a flag; if it is 1, each packet sent and received
-	 *  is printed out
-	 */
-	Substrate(InetAddress myIp, int port, InetSocketAddress peerAdr,
-		  double discProb, boolean debug) {
-		// initialize instance variables
-		this.peerAdr = peerAdr;
-		this.discProb = discProb;
-		this.debug = debug;
-
-		// open and configure socket with timeout
-		sock = null;
-		try {
-			sock = new DatagramSocket(port,myIp);
-			sock.setSoTimeout(100);
-			sock.setReceiveBufferSize(1000000);
-		} catch(Exception e) {
-			System.out.println("unable to create socket: " + e);
-			System.exit(1);
-		}
-
-		sndr = new Sender(sock,peerAdr,discProb,debug);
-		rcvr = new Receiver(sock,peerAdr,sndr,debug);
-	}
+/** Packet substrate.
+ *
+ *  A substrate carries packets between an Rdt object and its peer.
+ *  It provides a non-blocking test for whether another packet can be
+ *  sent or received, before attempting a potentially blocking send
+ *  or receive operation. Packets handed to a substrate may be lost,
+ *  but are never corrupted.
+ *
+ *  A substrate and its user share a PacketPool. Received packets are
+ *  allocated from the pool and passed to the user with one reference;
+ *  send() takes over one reference from the caller.
+ */
 
+public interface Substrate {
 	/** Start Substrate running. */
-	public void start() { sndr.start(); rcvr.start(); }
+	public void start();
 
 	/** Wait for Substrate to stop. */
-	public void join() throws Exception { sndr.join(); rcvr.join(); }
+	public void join() throws Exception;
+
+	/** Stop the substrate once the packets already handed to it have
+	 *  been sent. Returns at once; join() waits for the substrate to
+	 *  stop. A substrate that is not stopped stops by itself once it
+	 *  has been idle for a few seconds.
+	 */
+	public void stop();
+
+	/** Get the packet pool shared by this substrate and its user.
+	 *  @return the pool
+	 */
+	public PacketPool pool();
 
 	/** Send a packet.
-	 *  @param p is a packet to be sent
+	 *  @param p is a packet to be sent; the reference to it passes
+	 *  to the substrate, which releases it once transmitted
 	 */
-	public void send(Packet p) { sndr.send(p); }
-		
+	public void send(Packet p);
+
 	/** Test if substrate is ready to send more packets.
 	 *  @return true if substrate is ready
 	 */
-	public boolean ready() { return sndr.ready(); }
-	
-	/**Test is substrate is ready to receive x more packets.
-	*  @return true if substrate is ready
-	*/
-	public boolean readyX(int x) { return sndr.readyX(x); }
+	public boolean ready();
+
+	/** Test if substrate is ready to accept x more packets.
+	 *  @return true if substrate is ready
+	 */
+	public boolean readyX(int x);
+
+	/** Register a listener to be run when a packet arrives.
+	 *  @param listener is run each time a packet becomes available
+	 *  to receive(); may be null
+	 */
+	public void setListener(Runnable listener);
+
 	/** Retrieve the next packet from the substrate.
 	 *  @return the next incoming packet
 	 */
-	public Packet receive() { return rcvr.receive(); }
-	
+	public Packet receive();
+
 	/** Test for the presence of incoming packets.
 	 *  @return true if there are packets available to be received.
 	 */
-	public boolean incoming() { return rcvr.incoming(); }
+	public boolean incoming();
+
+	/** Set the rate at which packets are paced onto the network.
+	 *  A substrate that cannot pace may ignore this.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  for no limit
+	 */
+	public void setPacingRate(double rate);
+
+	/** Get the substrate's statistics.
+	 *  @return live counters for the packets sent and received,
+	 *  and gauges for the depths of its queues
+	 */
+	public Metrics metrics();
 }
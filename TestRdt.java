@@ -1,5 +1,8 @@
 /** Test reliable data transport protocol.
- *  usage: TestRdt myIp myPort wSize timeout [ debug ]
+ *  usage: TestRdt myIp myPort wSize timeout [ debug ] [ sr ] [ sack ]
+ *  		[ delack ] [ cc ] [ flow ] [ bundle ] [ pace ] [ events ]
+ *  		[ nio ] [ mux ] [ stats ] [ virtual ] [ load ] [ trace ]
+ *  		[ fec[k] ] [ conn ]
  *  		[ discProb delta runLength ] [ peerIp peerPort  ]
  *  
  *  A pair of TestRdt processes can be used to test the Rdt class.
@@ -11,10 +14,67 @@
  *  		when starting a client, this can be set to zero
  *  wSize	is the window size to be used by the protocol (in packets);
  *	        should be the same at both ends
- *  timeout	is the time that the protocol waits before re-sending a packet
- *		(expressed as a floating point value in seconds)
+ *  timeout	is the time that the protocol initially waits before re-sending
+ *		a packet (expressed as a floating point value in seconds);
+ *		the protocol adapts it to the measured round-trip time,
+ *		but never goes below this value
  *  debug	if the debug argument is present and equal to the string
  *  		"debug", the program prints every packet sent or received
+ *  sr		if the sr argument is present, the selective-repeat protocol
+ *  		is used in place of go-back-N; should be the same at both ends
+ *  sack	if the sack argument is present with sr, the receiver sends
+ *  		selective acks that report every packet it holds
+ *  delack	if the delack argument is present, acks for packets that
+ *  		arrive in order are sent for every second packet or after
+ *  		a quarter of the timeout, and are carried on outgoing data
+ *  		packets when possible; should be the same at both ends
+ *  cc		if the cc argument is present, the number of packets in
+ *  		flight is also limited by a congestion window that adapts
+ *  		to the losses seen, up to wSize
+ *  flow	if the flow argument is present, acks advertise how many
+ *  		more packets the receiving application can take, and a
+ *  		peer stops sending when that drops to zero
+ *  bundle	if the bundle argument is present, short messages are
+ *  		sent several to a packet, waiting up to 5 ms for a packet
+ *  		to fill
+ *  pace	if the pace argument is present, packets are spread out
+ *  		over each round trip rather than sent in bursts; ignored
+ *  		by a mux server
+ *  events	if the events argument is present, the Rdt thread blocks
+ *  		until it has work to do, instead of polling every millisecond
+ *  nio		if the nio argument is present, socket IO is done by a single
+ *  		thread using a non-blocking channel, in place of separate
+ *  		sender and receiver threads
+ *  mux		if the mux argument is present in a server, the server
+ *  		accepts any number of clients on its port, running a separate
+ *  		Rdt and SrcSnk for each one
+ *  stats	if the stats argument is present, the statistics of the
+ *  		Rdt and the substrate are printed every second; they can
+ *  		also be watched through JMX, with or without it
+ *  virtual	if the virtual argument is present, the program's threads
+ *  		are virtual threads, where the Java release supports them
+ *  load	if the load argument is present, a LoadGen takes the place
+ *  		of the SrcSnk: it sends 1000 byte messages at the rate set
+ *  		by delta, measures their one-way latency at the peer (when
+ *  		both run on one host), and prints the statistics of each
+ *  		second as CSV at the end; should be the same at both ends,
+ *  		and is ignored by a mux server
+ *  trace	if the trace argument is present, every packet sent,
+ *  		discarded or received is recorded in the binary trace file
+ *  		rdt-pid.trace, where pid is the process id; unlike debug,
+ *  		this barely affects timing; decode the file with Tracer
+ *  fec[k]	if the fec argument is present, a parity packet is sent
+ *  		after every k data packets (8 if k is omitted, at most 16),
+ *  		from which the peer rebuilds a single lost packet of the
+ *  		group without waiting for it to be resent; must be the
+ *  		same at both ends
+ *  conn	if the conn argument is present, the client opens a
+ *  		connection with a SYN before sending data, and each side
+ *  		sends a FIN once its run is over; a side stops as soon as
+ *  		both FINs are acked, instead of waiting for its substrate
+ *  		to go idle, and exits with status 1 if the peer went
+ *  		away first; should be the same at both ends, and is
+ *  		ignored with load
  *  discProb	is the probability that a generated packet gets discarded,
  *  		allowing us to exercise the protocol's ability to recover;
  *  		default value is 0
@@ -38,7 +98,10 @@ public class TestRdt {
 		// process command line arguments
 		if (args.length < 5)  {
 			System.out.println("usage: TestRdt myIp myPort " +
-				"wSize timeout [ debug ] " +
+				"wSize timeout [ debug ] [ sr ] [ sack ] " +
+				"[ delack ] [ cc ] [ flow ] [ bundle ] [ pace ] " +
+				"[ events ] [ nio ] [ mux ] [ stats ] [ virtual ] " +
+				"[ load ] [ trace ] [ fec[k] ] [ conn ] " +
 				"[ discProb delta runLength ] " +
 				"[ peerIp peerPort ]");
 			System.exit(1);
@@ -48,9 +111,38 @@ public class TestRdt {
 		int wSize = Integer.parseInt(args[2]);
 		double timeout = Double.parseDouble(args[3]);
 
-		boolean debug = false; int nextArg = 4;
-		if (args.length > nextArg && args[nextArg].equals("debug")) {
-			debug = true; nextArg++;
+		boolean debug = false; int mode = Rdt.GO_BACK_N;
+		boolean events = false; boolean nio = false;
+		boolean mux = false; boolean sack = false;
+		boolean delack = false; boolean cc = false;
+		boolean flow = false; boolean bundle = false;
+		boolean pace = false; boolean stats = false;
+		boolean virtual = false; boolean load = false;
+		boolean trace = false; int fec = 0;
+		boolean conn = false;
+		int nextArg = 4;
+		while (args.length > nextArg) {
+			if (args[nextArg].equals("debug")) debug = true;
+			else if (args[nextArg].equals("sr")) mode = Rdt.SEL_REPEAT;
+			else if (args[nextArg].equals("sack")) sack = true;
+			else if (args[nextArg].equals("delack")) delack = true;
+			else if (args[nextArg].equals("cc")) cc = true;
+			else if (args[nextArg].equals("flow")) flow = true;
+			else if (args[nextArg].equals("bundle")) bundle = true;
+			else if (args[nextArg].equals("pace")) pace = true;
+			else if (args[nextArg].equals("events")) events = true;
+			else if (args[nextArg].equals("nio")) nio = true;
+			else if (args[nextArg].equals("mux")) mux = true;
+			else if (args[nextArg].equals("stats")) stats = true;
+			else if (args[nextArg].equals("virtual")) virtual = true;
+			else if (args[nextArg].equals("load")) load = true;
+			else if (args[nextArg].equals("trace")) trace = true;
+			else if (args[nextArg].matches("fec[0-9]*"))
+				fec = (args[nextArg].length() > 3 ? Integer.parseInt(
+					args[nextArg].substring(3)) : 8);
+			else if (args[nextArg].equals("conn")) conn = true;
+			else break;
+			nextArg++;
 		}
 		double discProb = 0;
 		if (args.length > nextArg) 
@@ -67,24 +159,187 @@ public class TestRdt {
 			peerAdr = new InetSocketAddress(args[nextArg],
 				    	Integer.parseInt(args[nextArg+1]));
 
+		if (virtual) Threads.useVirtual();
+		Tracer tracer = null;
+		if (trace) tracer = new Tracer("rdt-" + ProcessHandle.current()
+					       .pid() + ".trace", 1 << 20);
+
+		if (mux && peerAdr == null) {
+			runMux(myIp,myPort,wSize,timeout,mode,sack,delack,cc,
+			       flow,bundle,events,debug,discProb,delta,runLength,
+			       tracer,fec,conn && !load);
+			return;
+		}
+
 		try {
 			// instantiate components and start their threads
-			Substrate sub = new Substrate(myIp,myPort,peerAdr,
-						      discProb,debug);
+			Substrate sub;
+			if (nio) {
+				NioSubstrate ns = new NioSubstrate(myIp,myPort,
+					peerAdr,discProb,debug,new IoLoop());
+				ns.setTracer(tracer); sub = ns;
+			} else {
+				UdpSubstrate us = new UdpSubstrate(myIp,myPort,
+					peerAdr,discProb,debug);
+				us.setTracer(tracer); sub = us;
+			}
+			if (fec > 0) sub = new FecSubstrate(sub,fec);
 			sub.start();
-			Rdt rdt = new Rdt(wSize,timeout,sub);
+			Rdt rdt = new Rdt(wSize,timeout,sub,mode);
+			rdt.setSack(sack);
+			if (delack) rdt.setAckPolicy(2,timeout/4,true);
+			rdt.setCongestionControl(cc);
+			rdt.setFlowControl(flow);
+			rdt.setAggregation(bundle,.005);
+			rdt.setPacing(pace);
+			rdt.setEventDriven(events);
+			rdt.setConnection(conn && !load);
 			rdt.start();
+			if (stats) watch(rdt,sub);
 			// delay sending of packets by server, to give client
-			// a chance to send the first packet
-			if (peerAdr == null) Thread.sleep(2000);
-			SrcSnk ss = new SrcSnk(delta,runLength,rdt);
-			ss.start();
-			// wait for substrate to quit, then stop others
-			sub.join(); rdt.stop(); ss.stop();
+			// a chance to send the first packet; a connection
+			// makes the server wait for the client anyway
+			if (peerAdr == null && (!conn || load)) Thread.sleep(2000);
+			if (load) {
+				runLoad(sub,rdt,delta,runLength);
+			} else if (conn) {
+				// run until both sides have closed, then
+				// stop the substrate rather than let it idle
+				SrcSnk ss = new SrcSnk(delta,runLength,rdt);
+				ss.setStartDelay(0);
+				ss.start(); ss.join();
+				rdt.stop(); sub.stop(); sub.join();
+				if (ss.failed()) {
+					if (tracer != null) tracer.close();
+					System.exit(1);
+				}
+			} else {
+				SrcSnk ss = new SrcSnk(delta,runLength,rdt);
+				ss.start();
+				// wait for substrate to quit, then stop others;
+				// virtual threads don't keep the program
+				// running, so wait for the SrcSnk to report
+				sub.join(); rdt.stop(); ss.stop(); ss.join();
+			}
+			if (tracer != null) tracer.close();
 		} catch(Exception e) {
 			System.out.println("TestRdt: exception " + e);
 			System.exit(1);
 		}
 
 	}
+
+	/** Run a LoadGen over an Rdt until the substrate quits.
+	 *  Then print the LoadGen's results as CSV.
+	 */
+	private static void runLoad(Substrate sub, Rdt rdt, double delta,
+				    double runLength) throws Exception {
+		LoadGen lg = new LoadGen(runLength,rdt);
+		if (delta > 0) lg.setSchedule("const:" + (1 / delta));
+		lg.start();
+		sub.join(); rdt.stop(); lg.stop(); lg.join();
+		LoadGen.report(Arrays.asList(lg),System.out,false);
+	}
+
+	/** Print the statistics of an Rdt and its substrate every second.
+	 *  The printing is done by a daemon thread, so it stops when
+	 *  the program does.
+	 */
+	private static void watch(Rdt rdt, Substrate sub) {
+		Thread t = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(1000);
+				} catch(Exception e) {
+					return;
+				}
+				System.out.println("Rdt: " + rdt.metrics().snapshot());
+				System.out.println("Substrate: "
+						   + sub.metrics().snapshot());
+			}
+		});
+		t.setDaemon(true); t.start();
+	}
+
+	/** Run a server that accepts many clients on one port.
+	 *  A new Rdt and SrcSnk are started for each client on first
+	 *  contact, and stopped when the client's session is evicted
+	 *  or the substrate quits; with connections, a session is
+	 *  stopped once both sides have closed.
+	 */
+	private static void runMux(InetAddress myIp, int myPort, int wSize,
+			double timeout, int mode, boolean sack, boolean delack,
+			boolean cc, boolean flow, boolean bundle, boolean events,
+			boolean debug, double discProb, double delta,
+			double runLength, Tracer tracer, int fec,
+			boolean conn) {
+		final HashMap<Rdt,SrcSnk> apps = new HashMap<Rdt,SrcSnk>();
+		MuxSubstrate.Listener listener = new MuxSubstrate.Listener() {
+			public Rdt open(Substrate sub, InetSocketAddress peer) {
+				if (fec > 0) sub = new FecSubstrate(sub,fec);
+				Rdt rdt = new Rdt(wSize,timeout,sub,mode);
+				rdt.setSack(sack);
+				if (delack) rdt.setAckPolicy(2,timeout/4,true);
+				rdt.setCongestionControl(cc);
+				rdt.setFlowControl(flow);
+				rdt.setAggregation(bundle,.005);
+				rdt.setEventDriven(events);
+				rdt.setConnection(conn);
+				SrcSnk ss = new SrcSnk(delta,runLength,rdt);
+				if (conn) ss.setStartDelay(0);
+				try {
+					sub.start(); rdt.start();
+				} catch(Exception e) {
+					System.out.println("TestRdt: exception " + e);
+					System.exit(1);
+				}
+				ss.start();
+				synchronized (apps) { apps.put(rdt,ss); }
+				if (conn || fec > 0) {
+					// close the session once both sides have;
+					// joining a FecSubstrate once the session
+					// ends stops its flush timer
+					final Substrate s = sub;
+					Threads.newThread(null, () -> {
+						try {
+							if (conn) {
+								ss.join(); rdt.stop();
+								s.stop();
+							}
+							s.join();
+						} catch(Exception e) {
+							System.out.println(
+							    "TestRdt: exception " + e);
+							System.exit(1);
+						}
+					}).start();
+				}
+				return rdt;
+			}
+			public void closed(Rdt rdt, InetSocketAddress peer) {
+				SrcSnk ss;
+				synchronized (apps) { ss = apps.remove(rdt); }
+				ss.stop();
+				try {
+					ss.join(); // let it report
+				} catch(Exception e) {
+					System.out.println("TestRdt: exception " + e);
+					System.exit(1);
+				}
+			}
+		};
+		try {
+			MuxSubstrate sub = new MuxSubstrate(myIp,myPort,discProb,
+						debug,30,listener);
+			sub.setTracer(tracer);
+			sub.start();
+			// wait for substrate to quit; remaining sessions are
+			// evicted at that point
+			sub.join();
+			if (tracer != null) tracer.close();
+		} catch(Exception e) {
+			System.out.println("TestRdt: exception " + e);
+			System.exit(1);
+		}
+	}
 }
@@ -0,0 +1,74 @@
+/** Thread creation for Rdts, SrcSnks and substrates.
+ *
+ *  Each of these objects runs on one or more threads of its own, which
+ *  it creates when it is started. The threads come from a ThreadFactory
+ *  that may be set for each object before it is started; objects for
+ *  which none is set use the process-wide default held here. That is
+ *  platform threads, as created by new Thread(), until useVirtual()
+ *  switches it to virtual threads.
+ *
+ *  Virtual threads make it practical to run many endpoints in one
+ *  process, for load testing: a virtual thread costs little more than
+ *  its stack frames, and one that blocks on a socket, a PacketQueue or
+ *  a sleep releases its carrier thread. They need Java 21 or later,
+ *  and are looked up by reflection, so this code still builds and runs
+ *  on older releases, which keep to platform threads. Virtual threads
+ *  are always daemon threads, so a program that uses them must join
+ *  the threads it needs before main() returns.
+ */
+
+import java.util.concurrent.*;
+
+public class Threads {
+	private static volatile ThreadFactory factory = Thread::new;
+
+	/** Get the default thread factory.
+	 *  @return the factory used by objects that have none of their own
+	 */
+	public static ThreadFactory factory() { return factory; }
+
+	/** Set the default thread factory.
+	 *  @param f is the factory to use for objects started from now on
+	 *  that have none of their own
+	 */
+	public static void setFactory(ThreadFactory f) { factory = f; }
+
+	/** Get a factory for virtual threads.
+	 *  @return the factory, or null if this Java release does not
+	 *  support virtual threads
+	 */
+	public static ThreadFactory virtual() {
+		try {
+			Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+				.getMethod("factory").invoke(b);
+		} catch(Exception e) {
+			return null; // before Java 21, or preview not enabled
+		}
+	}
+
+	/** Make virtual threads the default, if they are supported.
+	 *  If not, a warning is printed and platform threads are kept.
+	 *  @return true if virtual threads are now the default
+	 */
+	public static boolean useVirtual() {
+		ThreadFactory f = virtual();
+		if (f == null) {
+			System.err.println("Threads: virtual threads not supported "
+				+ "by Java " + Runtime.version().feature()
+				+ ", using platform threads");
+			return false;
+		}
+		factory = f;
+		return true;
+	}
+
+	/** Create a thread.
+	 *  @param f is the factory to use, or null for the default
+	 *  @param r is what the thread runs
+	 *  @return the new thread, not yet started
+	 */
+	public static Thread newThread(ThreadFactory f, Runnable r) {
+		return (f != null ? f : factory).newThread(r);
+	}
+}
@@ -0,0 +1,63 @@
+/** Token bucket for pacing packets.
+ *
+ *  The bucket fills with tokens at a given rate, in bytes per second,
+ *  up to a burst size. A packet may be sent once there are as many
+ *  tokens as it has bytes; sending it removes them. So, over any
+ *  interval, no more than the burst size plus the rate times the
+ *  interval is sent, and a queue of packets goes out spread over time
+ *  rather than back-to-back.
+ *
+ *  The rate may be changed at any time, by any thread; the bucket
+ *  itself is used by a single sending thread.
+ */
+
+public class TokenBucket {
+	public static final int BURST = 8 * Packet.MAXLEN; // default burst
+
+	private volatile double rate;	// bytes per second, 0 if unlimited
+	private volatile int burst;	// bucket size in bytes
+	private double tokens;		// bytes that may be sent now
+	private long last = 0;		// time of last refill in ns
+
+	/** Initialize a new TokenBucket object.
+	 *  @param rate is the rate in bytes per second, or 0 for no limit
+	 *  @param burst is the largest number of bytes sent back-to-back
+	 */
+	TokenBucket(double rate, int burst) {
+		this.rate = rate; this.burst = burst;
+		tokens = burst;
+	}
+
+	/** Change the rate.
+	 *  @param rate is the new rate in bytes per second, or 0 for no limit
+	 */
+	public void setRate(double rate) { this.rate = rate; }
+
+	/** Change the burst size.
+	 *  @param burst is the new burst size in bytes
+	 */
+	public void setBurst(int burst) { this.burst = burst; }
+
+	/** Get the rate.
+	 *  @return the rate in bytes per second, or 0 if unlimited
+	 */
+	public double rate() { return rate; }
+
+	/** Take the tokens for a packet, if there are enough.
+	 *  @param len is the packet length in bytes
+	 *  @param now is the current time in ns
+	 *  @return 0 if the tokens were taken and the packet can be sent,
+	 *  otherwise the time to wait in ns before trying again
+	 */
+	public long reserve(int len, long now) {
+		double r = rate;
+		if (r <= 0) return 0;
+		int b = Math.max(burst, len);
+		tokens = Math.min(b, tokens + r * (now - last) / 1e9);
+		last = now;
+		if (tokens >= len) {
+			tokens -= len; return 0;
+		}
+		return Math.max(1, (long) ((len - tokens) / r * 1e9));
+	}
+}
@@ -0,0 +1,247 @@
+/** Binary packet trace, written to a memory-mapped file.
+ *  usage: Tracer traceFile [ summary ]
+ *
+ *  A Tracer records each packet a substrate sends, discards or
+ *  receives as a fixed-size record in a ring held in a memory-mapped
+ *  file. Writing a record claims a slot with one atomic increment and
+ *  fills it with absolute puts into the mapping: nothing is allocated
+ *  and no system call is made, and the pages are touched when the file
+ *  is opened, so tracing costs a few tens of nanoseconds per packet and
+ *  can be left on. The operating system writes the pages back to the
+ *  file, even if the process is killed. Once the ring is full, new
+ *  records overwrite the oldest ones.
+ *
+ *  The file starts with a 64 byte header:
+ *	0   int   magic number, 0x52445454 ("RDTT")
+ *	4   int   version, 1
+ *	8   int   record length, 32
+ *	12  int   number of records in the ring, a power of 2
+ *	16  long  number of records written, updated every 256
+ *		  records and by close()
+ *	24  long  wall-clock time when the file was opened, in ms
+ *	32  long  System.nanoTime() when the file was opened
+ *  followed by the records:
+ *	0   long  System.nanoTime() when the packet was handled; a
+ *		  UdpSubstrate records the packets of a batch as it
+ *		  packs them, before any pacing delay
+ *	8   byte  direction, SENT or RECEIVED
+ *	9   byte  type byte as sent on the wire, with its flags
+ *	10  byte  1 if the packet was discarded, else 0
+ *	12  int   seqNum
+ *	16  int   ackNum
+ *	20  int   rwnd, or -1
+ *	24  int   payload length
+ *	28  int   peer's port, or 0 if not known
+ *  all big-endian. Slot i of the ring holds record n for which
+ *  n mod (number of records) = i. The time is written last, and a
+ *  slot with a time of 0 was never filled.
+ *
+ *  Run on its own, Tracer decodes a trace file. It lists the records
+ *  in time order, or with the summary argument, gives counts of
+ *  packets, bytes, discards and retransmissions in each direction.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class Tracer {
+	public static final byte SENT = 0;	// directions
+	public static final byte RECEIVED = 1;
+
+	private static final int MAGIC = 0x52445454;
+	private static final int HDR = 64;	// header length
+	private static final int REC = 32;	// record length
+	private static final int COUNT = 16;	// offset of record count
+
+	private final MappedByteBuffer buf;
+	private final int mask;		// number of records - 1
+	private final AtomicLong next;	// number of the next record
+
+	/** Initialize a new Tracer, creating or replacing its file.
+	 *  @param file is the name of the trace file
+	 *  @param records is the number of records the ring holds; it is
+	 *  rounded up to a power of 2
+	 */
+	Tracer(String file, int records) {
+		int n = Integer.highestOneBit(Math.max(2,records-1)) << 1;
+		mask = n - 1;
+		next = new AtomicLong(0);
+		long size = HDR + (long) n * REC;
+		MappedByteBuffer b = null;
+		try (RandomAccessFile f = new RandomAccessFile(file,"rw")) {
+			f.setLength(0); f.setLength(size);
+			b = f.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					       0, size);
+		} catch(Exception e) {
+			System.err.println("Tracer: cannot map " + file + ": " + e);
+			System.exit(1);
+		}
+		buf = b;
+		// fault the pages in now, rather than on the data path
+		for (int i = 0; i < size; i += 4096) buf.put(i, (byte) 0);
+		buf.putInt(0, MAGIC).putInt(4, 1).putInt(8, REC).putInt(12, n);
+		buf.putLong(COUNT, 0);
+		buf.putLong(24, System.currentTimeMillis());
+		buf.putLong(32, System.nanoTime());
+	}
+
+	/** Record a packet.
+	 *  May be called by several threads at once.
+	 *  @param dir is SENT or RECEIVED
+	 *  @param p is the packet
+	 *  @param discarded is true if the packet was discarded
+	 */
+	public void record(byte dir, Packet p, boolean discarded) {
+		long k = next.getAndIncrement();
+		int i = HDR + (int) (k & mask) * REC;
+		buf.put(i+8, dir).put(i+9, p.wireType())
+		   .put(i+10, (byte) (discarded ? 1 : 0))
+		   .putInt(i+12, p.seqNum).putInt(i+16, p.ackNum)
+		   .putInt(i+20, p.rwnd).putInt(i+24, p.length())
+		   .putInt(i+28, p.peer != null ? p.peer.getPort() : 0);
+		buf.putLong(i, System.nanoTime());
+		if ((k & 0xff) == 0xff) buf.putLong(COUNT, k+1);
+	}
+
+	/** Flush the trace to its file. */
+	public void close() {
+		buf.putLong(COUNT, next.get());
+		buf.force();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: Tracer traceFile [ summary ]");
+			System.exit(1);
+		}
+		ByteBuffer b = null;
+		try (RandomAccessFile f = new RandomAccessFile(args[0],"r")) {
+			b = f.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					       0, f.length());
+		}
+		if (b.limit() < HDR || b.getInt(0) != MAGIC ||
+		    b.getInt(8) != REC) {
+			System.err.println("Tracer: " + args[0]
+					   + " is not a trace file");
+			System.exit(1);
+		}
+		int n = b.getInt(12);
+		long written = b.getLong(COUNT);
+
+		// collect the filled slots, oldest first
+		ArrayList<Integer> recs = new ArrayList<Integer>();
+		for (int i = 0; i < n && HDR + (i+1) * REC <= b.limit(); i++) {
+			if (b.getLong(HDR + i*REC) != 0) recs.add(HDR + i*REC);
+		}
+		final ByteBuffer bb = b;
+		recs.sort((x, y) -> Long.compare(bb.getLong(x), bb.getLong(y)));
+		if (recs.size() == 0) {
+			System.out.println("empty trace");
+			return;
+		}
+		long t0 = b.getLong(recs.get(0));
+		if (args.length > 1 && args[1].equals("summary"))
+			summarize(b, recs, written);
+		else for (int r : recs) {
+			System.out.println(format(b, r, t0));
+		}
+	}
+
+	/** Format a record.
+	 *  @param b is the trace
+	 *  @param r is the offset of the record
+	 *  @param t0 is the time of the first record
+	 *  @return a line giving the record's time in seconds from the
+	 *  first record, direction, peer port and packet
+	 */
+	private static String format(ByteBuffer b, int r, long t0) {
+		int type = b.get(r+9) & 0xff;
+		int kind = type & 0x0f;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%.6f ", (b.getLong(r) - t0) / 1e9));
+		sb.append(b.get(r+8) == SENT ? "sent " : "rcvd ");
+		if (b.getInt(r+28) != 0) sb.append(":" + b.getInt(r+28) + " ");
+		if (kind == Packet.DATA || kind == Packet.DATA_ACK) {
+			sb.append("data[" + b.getInt(r+12) + "]");
+			if (kind == Packet.DATA_ACK)
+				sb.append(" ack[" + b.getInt(r+16) + "]");
+		} else if (kind == Packet.SACK) {
+			sb.append("sack[" + b.getInt(r+12) + "]");
+		} else if (kind == Packet.FEC) {
+			sb.append("fec[" + b.getInt(r+12) + "]");
+		} else if (kind == Packet.SYN) {
+			sb.append("syn");
+		} else if (kind == Packet.SYN_ACK) {
+			sb.append("syn-ack");
+		} else if (kind == Packet.FIN) {
+			sb.append("fin[" + b.getInt(r+12) + "]");
+		} else sb.append("ack[" + b.getInt(r+12) + "]");
+		if ((type & Packet.WND) != 0)
+			sb.append(" wnd[" + b.getInt(r+20) + "]");
+		if ((type & Packet.MORE) != 0) sb.append(" more");
+		if ((type & Packet.BUNDLE) != 0) sb.append(" bundle");
+		sb.append(" len " + b.getInt(r+24));
+		if (b.get(r+10) != 0) sb.append(" discarded");
+		return sb.toString();
+	}
+
+	/** Print a summary of a trace.
+	 *  @param b is the trace
+	 *  @param recs are the offsets of its records, in time order
+	 *  @param written is the number of records written, including
+	 *  any that were overwritten
+	 */
+	private static void summarize(ByteBuffer b, ArrayList<Integer> recs,
+				      long written) {
+		String[] names = { "sent", "received" };
+		long[] data = new long[2], acks = new long[2], bytes = new long[2];
+		long[] disc = new long[2], parity = new long[2];
+		long resent = 0;
+		// last new seqNum and largest seqNum sent, by peer port
+		HashMap<Integer,int[]> sent = new HashMap<Integer,int[]>();
+		for (int r : recs) {
+			int d = b.get(r+8);
+			int kind = b.get(r+9) & 0x0f;
+			boolean isData = (kind == Packet.DATA ||
+					  kind == Packet.DATA_ACK);
+			if (isData) {
+				data[d]++; bytes[d] += b.getInt(r+24);
+			} else if (kind == Packet.FEC) parity[d]++;
+			else acks[d]++;
+			if (b.get(r+10) != 0) disc[d]++;
+			if (isData && d == SENT) {
+				// new packets have consecutive numbers, until
+				// they wrap around from the largest to 0
+				int[] s = sent.computeIfAbsent(b.getInt(r+28),
+						k -> new int[] { -1, -1 });
+				int x = b.getInt(r+12);
+				if (s[0] < 0 || x == s[0]+1 ||
+				    (x == 0 && s[0] == s[1])) {
+					s[0] = x; s[1] = Math.max(s[1], x);
+				} else resent++;
+			}
+		}
+		double secs = (b.getLong(recs.get(recs.size()-1))
+			       - b.getLong(recs.get(0))) / 1e9;
+		System.out.printf("%d records over %.3f s", recs.size(), secs);
+		if (written > recs.size())
+			System.out.print(", " + (written - recs.size())
+					 + " older ones overwritten");
+		System.out.println();
+		for (int d = 0; d < 2; d++) {
+			System.out.printf("%-9s %d data packets (%d bytes, "
+				+ "%.2f MB/s), %d acks, %d discarded%n",
+				names[d], data[d], bytes[d],
+				secs > 0 ? bytes[d] / secs / 1e6 : 0.0,
+				acks[d], disc[d]);
+			if (parity[d] > 0)
+				System.out.println("          " + parity[d]
+					+ " parity packets");
+		}
+		System.out.println("          " + resent + " data packets sent "
+			+ "again (not the next sequence number)");
+	}
+}
@@ -0,0 +1,155 @@
+/** Substrate implementation using a blocking datagram socket.
+ *
+ *  Outgoing packets are written to the socket by a Sender thread,
+ *  and incoming packets are read by a Receiver thread.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class UdpSubstrate implements Substrate {
+	private DatagramSocket sock;
+	private InetSocketAddress peerAdr;
+	private double discProb;
+	private boolean debug;
+
+	private Sender sndr;
+	private Receiver rcvr;
+	private PacketPool pool;
+	private Metrics metrics;
+	private volatile boolean stopped = false;
+	
+	/** Initialize a new UdpSubstrate object.
+	 *  @param myIp is the IP address to bind to the socket
+	 *  @param port is the port number to bind to the socket (may be 0)
+	 *  @param peerAdr is the IP address/port pair for the peer host
+	 *  (may be null, if this object is being used in a server)
+	 *  @param discProb is a discard probability used to randomly discard
+	 *  packets received from the Rdt object
+	 *  @param debug is a flag; if it is 1, each packet sent and received
+	 *  is printed out
+	 */
+	UdpSubstrate(InetAddress myIp, int port, InetSocketAddress peerAdr,
+		  double discProb, boolean debug) {
+		// initialize instance variables
+		this.peerAdr = peerAdr;
+		this.discProb = discProb;
+		this.debug = debug;
+
+		// open and configure socket with timeout
+		sock = null;
+		try {
+			sock = new DatagramSocket(port,myIp);
+			sock.setSoTimeout(100);
+			sock.setReceiveBufferSize(1000000);
+		} catch(Exception e) {
+			System.out.println("unable to create socket: " + e);
+			System.exit(1);
+		}
+
+		pool = new PacketPool(4096);
+		metrics = new Metrics("UdpSubstrate");
+		sndr = new Sender(sock,peerAdr,discProb,debug,pool,metrics);
+		rcvr = new Receiver(sock,peerAdr,sndr,debug,pool,metrics);
+	}
+
+	/** Set the maximum number of packets the Sender sends per wakeup.
+	 *  Must be called before start().
+	 *  @param batchSize is the maximum batch size (at least 1)
+	 */
+	public void setBatchSize(int batchSize) { sndr.setBatchSize(batchSize); }
+
+	/** Set the factory for the Sender and Receiver threads.
+	 *  Must be called before start().
+	 *  @param threads is the factory, or null for Threads.factory()
+	 */
+	public void setThreadFactory(ThreadFactory threads) {
+		sndr.setThreadFactory(threads); rcvr.setThreadFactory(threads);
+	}
+
+	/** Record the packets sent, discarded and received in a trace.
+	 *  Must be called before start().
+	 *  @param tracer is the tracer, or null for none
+	 */
+	public void setTracer(Tracer tracer) { sndr.setTracer(tracer); rcvr.setTracer(tracer); }
+
+	/** Start Substrate running. */
+	public void start() {
+		metrics.register(); sndr.start(); rcvr.start();
+	}
+
+	/** Wait for Substrate to stop. */
+	public void join() throws Exception {
+		sndr.join();
+		if (stopped) sock.close(); // so the Receiver need not wait
+		rcvr.join(); metrics.unregister();
+	}
+
+	/** Stop the Sender once it has sent what is queued, and the
+	 *  Receiver at once; join() closes the socket.
+	 */
+	public void stop() {
+		stopped = true; rcvr.stop(); sndr.stop();
+	}
+
+	/** Get the packet pool shared by this substrate and its user.
+	 *  @return the pool
+	 */
+	public PacketPool pool() { return pool; }
+
+	/** Send a packet.
+	 *  @param p is a packet to be sent; the reference to it passes
+	 *  to the substrate, which releases it once transmitted
+	 */
+	public void send(Packet p) { sndr.send(p); }
+		
+	/** Test if substrate is ready to send more packets.
+	 *  @return true if substrate is ready
+	 */
+	public boolean ready() { return sndr.ready(); }
+	
+	/**Test is substrate is ready to receive x more packets.
+	*  @return true if substrate is ready
+	*/
+	public boolean readyX(int x) { return sndr.readyX(x); }
+	/** Register a listener to be run when a packet arrives.
+	 *  @param listener is run by the receiving thread each time
+	 *  a packet becomes available to receive(); may be null
+	 */
+	public void setListener(Runnable listener) {
+		rcvr.setListener(listener);
+	}
+
+	/** Retrieve the next packet from the substrate.
+	 *  @return the next incoming packet
+	 */
+	public Packet receive() { return rcvr.receive(); }
+	
+	/** Test for the presence of incoming packets.
+	 *  @return true if there are packets available to be received.
+	 */
+	public boolean incoming() { return rcvr.incoming(); }
+
+	/** Pace packets with a token bucket.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  for no limit
+	 *  @param burst is the most bytes sent back-to-back
+	 */
+	public void setPacing(double rate, int burst) {
+		sndr.setPacing(rate,burst);
+	}
+
+	/** Set the rate at which packets are paced onto the network.
+	 *  @param rate is the sending rate in bytes per second, or 0
+	 *  for no limit
+	 */
+	public void setPacingRate(double rate) { sndr.setPacingRate(rate); }
+
+	/** Get the substrate's statistics.
+	 *  @return live statistics of the Sender and Receiver; they are
+	 *  registered with JMX from start() until join() returns
+	 */
+	public Metrics metrics() { return metrics; }
+}